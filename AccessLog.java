@@ -0,0 +1,324 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access log in Combined Log Format (or Common, or one JSON object per line). Worker threads never touch the file:
+ * they claim a slot in a preallocated ring with a CAS, copy the entry's fields and bytes into the slot's own
+ * arrays and publish it, so logging a request neither blocks nor allocates. A single writer thread formats
+ * published entries into a direct buffer and writes them to a FileChannel in batches, rotating the file by size
+ * and by age.
+ *
+ * When the ring is full an entry is either dropped and counted (the default) or the worker waits for the writer
+ * to free a slot, depending on --access-log-full.
+ */
+public class AccessLog {
+
+    static AccessLog shared; // Log written by SocketHandler, null when there is no --access-log
+
+    static final int COMMON = 0;
+    static final int COMBINED = 1;
+    static final int JSON = 2;
+
+    static final int FLUSH_INTERVAL = 100; // Milliseconds a written entry may sit in the batch buffer
+    private static final int BATCH_BYTES = 256 << 10;
+    private static final int MAX_LINE = 16 << 10; // Longer than any formatted slot can get, even fully escaped
+
+    private Slot[] slots;
+    private int mask;
+    private AtomicLong head = new AtomicLong(); // Next sequence to claim
+    private AtomicLong tail = new AtomicLong(); // Next sequence the writer will consume, slots before it are free
+    private boolean block; // Wait for a free slot instead of dropping
+    private LongAdder dropped = new LongAdder();
+
+    private int format;
+    private Path path;
+    private long maxBytes; // Rotate once the file is this large
+    private long rotateInterval; // Rotate files older than this many milliseconds, 0 for never
+    private FileChannel channel;
+    private long written; // Bytes in the current file
+    private long opened; // When the current file was started
+    private ByteBuffer out = ByteBuffer.allocateDirect(BATCH_BYTES);
+
+    private long cachedSecond = -1; // Second the cached timestamp is for
+    private byte[] cachedTime;
+    private SimpleDateFormat timeFormat;
+
+    /**
+     * One log entry, reused every time the ring wraps around
+     */
+    private static final class Slot {
+        volatile long sequence = -1; // Sequence of the entry in the slot once it is published
+        long time;
+        byte[] remote; // Client address, shared with the connection, never changed
+        int status;
+        long bytes; // Body bytes sent
+        long micros; // Time taken to answer
+        final byte[] request = new byte[1024];
+        int requestLength;
+        final byte[] referer = new byte[512];
+        int refererLength;
+        final byte[] agent = new byte[512];
+        int agentLength;
+    }
+
+    public AccessLog(Path path, int format, int size, boolean block, long maxBytes, long rotateInterval) throws IOException {
+        int capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1; //Power of two so a mask finds the slot
+        slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot();
+        }
+        mask = capacity - 1;
+        this.path = path;
+        this.format = format;
+        this.block = block;
+        this.maxBytes = maxBytes;
+        this.rotateInterval = rotateInterval;
+        timeFormat = format == JSON ? new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss") : new SimpleDateFormat("dd/MMM/yyyy:HH:mm:ss Z", Locale.US);
+        if (format == JSON) timeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        open();
+
+        Thread t = new Thread(this::writeLoop, "access-log");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Turns the log on with --access-log=PATH. --access-log-format picks combined (default), common or json,
+     * --access-log-buffer sizes the ring, --access-log-full=drop|block says what happens when it is full, and
+     * --access-log-max-bytes and --access-log-rotate-interval control rotation.
+     */
+    public static void configure(ServerOptions options) {
+        String file = options.get("access-log", null);
+        shared = null;
+        if (file == null) return;
+
+        String name = options.get("access-log-format", "combined");
+        int format = name.equals("json") ? JSON : name.equals("common") ? COMMON : COMBINED;
+        try {
+            shared = new AccessLog(Paths.get(file), format, options.getInt("access-log-buffer", 8192),
+                    options.get("access-log-full", "drop").equals("block"), options.getInt("access-log-max-bytes", 64 << 20),
+                    options.getInt("access-log-rotate-interval", 0));
+        } catch (IOException e) {
+            System.err.println("Could not open access log " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Queues an entry. Called on worker threads, doesn't allocate and only blocks in block mode with a full ring.
+     * @param remote client address
+     * @param parser parser holding the request, its request line, Referer and User-Agent are copied
+     * @param status status code sent
+     * @param bytes body bytes sent
+     * @param nanos time taken to answer
+     */
+    public void log(byte[] remote, RequestParser parser, int status, long bytes, long nanos) {
+        long seq;
+        while (true) {
+            seq = head.get();
+            if (seq - tail.get() >= slots.length) { //Writer hasn't freed the slot this sequence needs
+                if (!block) {
+                    dropped.increment();
+                    return;
+                }
+                LockSupport.parkNanos(100000);
+                continue;
+            }
+            if (head.compareAndSet(seq, seq + 1)) break;
+        }
+
+        Slot slot = slots[(int) (seq & mask)];
+        slot.time = System.currentTimeMillis();
+        slot.remote = remote;
+        slot.status = status;
+        slot.bytes = bytes;
+        slot.micros = nanos / 1000;
+        slot.requestLength = parser.copyRequestLine(slot.request);
+        slot.refererLength = format == COMMON ? -1 : parser.copyValue("Referer", slot.referer);
+        slot.agentLength = format == COMMON ? -1 : parser.copyValue("User-Agent", slot.agent);
+        slot.sequence = seq; //Publish, the writer reads the fields after seeing this
+    }
+
+    /**
+     * @return entries dropped because the ring was full
+     */
+    public long dropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Runs on the writer thread: formats published entries in order and writes them out in batches
+     */
+    private void writeLoop() {
+        long next = 0;
+        long lastFlush = System.currentTimeMillis();
+        while (true) {
+            Slot slot = slots[(int) (next & mask)];
+            if (slot.sequence == next) {
+                if (out.remaining() < MAX_LINE) flush();
+                format(slot);
+                next++;
+                tail.lazySet(next); //Slot can be reused
+                continue;
+            }
+
+            long now = System.currentTimeMillis();
+            if (out.position() > 0 && now - lastFlush >= FLUSH_INTERVAL) {
+                flush();
+                lastFlush = now;
+            } else if (out.position() == 0) {
+                lastFlush = now;
+            }
+            LockSupport.parkNanos(1000000); //Nothing published, check again in a millisecond
+        }
+    }
+
+    private void flush() {
+        out.flip();
+        try {
+            while (out.hasRemaining()) {
+                written += channel.write(out);
+            }
+            long now = System.currentTimeMillis();
+            if (written >= maxBytes || (rotateInterval > 0 && now - opened >= rotateInterval)) {
+                rotate();
+            }
+        } catch (IOException e) {
+            //Disk trouble, lose this batch rather than stop logging
+        }
+        out.clear();
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        written = channel.size();
+        opened = System.currentTimeMillis();
+    }
+
+    /**
+     * Moves the current file aside with a timestamp suffix and starts a new one
+     */
+    private void rotate() throws IOException {
+        channel.close();
+        String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss.SSS").format(new Date());
+        Files.move(path, path.resolveSibling(path.getFileName() + "." + stamp), StandardCopyOption.REPLACE_EXISTING);
+        open();
+    }
+
+    private void format(Slot e) {
+        if (format == JSON) {
+            put("{\"time\":\"");
+            putTime(e.time);
+            put("\",\"remote\":\"");
+            out.put(e.remote);
+            put("\",\"request\":\"");
+            putEscaped(e.request, e.requestLength, true);
+            put("\",\"status\":");
+            putNumber(e.status);
+            put(",\"bytes\":");
+            putNumber(e.bytes);
+            put(",\"duration_us\":");
+            putNumber(e.micros);
+            put(",\"referer\":");
+            putJsonString(e.referer, e.refererLength);
+            put(",\"user_agent\":");
+            putJsonString(e.agent, e.agentLength);
+            put("}\n");
+            return;
+        }
+
+        out.put(e.remote);
+        put(" - - [");
+        putTime(e.time);
+        put("] \"");
+        putEscaped(e.request, e.requestLength, false);
+        put("\" ");
+        putNumber(e.status);
+        out.put((byte) ' ');
+        if (e.bytes > 0) putNumber(e.bytes);
+        else out.put((byte) '-');
+        if (format == COMBINED) {
+            put(" \"");
+            if (e.refererLength < 0) out.put((byte) '-');
+            else putEscaped(e.referer, e.refererLength, false);
+            put("\" \"");
+            if (e.agentLength < 0) out.put((byte) '-');
+            else putEscaped(e.agent, e.agentLength, false);
+            out.put((byte) '"');
+        }
+        out.put((byte) '\n');
+    }
+
+    /**
+     * Writes the entry's time, formatting it only once per second
+     */
+    private void putTime(long time) {
+        long second = time / 1000;
+        if (second != cachedSecond) {
+            cachedSecond = second;
+            cachedTime = timeFormat.format(new Date(second * 1000)).getBytes();
+        }
+        out.put(cachedTime);
+        if (format == JSON) {
+            out.put((byte) '.');
+            int ms = (int) (time % 1000);
+            out.put((byte) ('0' + ms / 100)).put((byte) ('0' + ms / 10 % 10)).put((byte) ('0' + ms % 10));
+            out.put((byte) 'Z');
+        }
+    }
+
+    private void putJsonString(byte[] b, int length) {
+        if (length < 0) {
+            put("null");
+            return;
+        }
+        out.put((byte) '"');
+        putEscaped(b, length, true);
+        out.put((byte) '"');
+    }
+
+    /**
+     * Writes bytes from the request, escaping quotes, backslashes and control characters so a client can't break
+     * up or forge log lines
+     */
+    private void putEscaped(byte[] b, int length, boolean json) {
+        for (int i = 0; i < length; i++) {
+            int c = b[i] & 0xff;
+            if (c == '"' || c == '\\') {
+                out.put((byte) '\\').put((byte) c);
+            } else if (c < 0x20 || c == 0x7f || (json && c >= 0x80)) {
+                put(json ? "\\u00" : "\\x");
+                out.put(HEX[c >> 4]).put(HEX[c & 0xf]);
+            } else {
+                out.put((byte) c);
+            }
+        }
+    }
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private void putNumber(long n) {
+        if (n < 0) {
+            out.put((byte) '-');
+            n = -n;
+        }
+        long div = 1;
+        while (div <= n / 10) div *= 10;
+        while (div > 0) {
+            out.put((byte) ('0' + n / div % 10));
+            div /= 10;
+        }
+    }
+
+    private void put(String ascii) {
+        for (int i = 0; i < ascii.length(); i++) {
+            out.put((byte) ascii.charAt(i));
+        }
+    }
+}
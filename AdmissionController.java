@@ -0,0 +1,279 @@
+import java.io.*;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs SocketHandlers on the worker threads under a concurrency limit that adapts to request latency. Handlers
+ * past the limit wait in a short queue; one that waits longer than the queue timeout, or arrives while the queue
+ * is full, is answered with 503 and Retry-After. Those answers are written on a separate thread so neither the
+ * accept loop nor a finishing worker ever blocks on a rejected client.
+ *
+ * The limit is recalculated once per sample window from the request latencies SocketHandler reports:
+ * AIMD backs off by 10% when the window's average latency passes the target and grows by one when the limit was
+ * reached without that happening; gradient compares the window's latency with a long term average and shrinks
+ * the limit in proportion as latency rises above it, growing it again by about the square root of the limit as
+ * latency recovers. Fixed never changes it.
+ */
+public class AdmissionController implements Executor {
+
+    private static ThreadLocal<AdmissionController> current = new ThreadLocal<AdmissionController>(); // Controller of the handler running on this thread
+
+    static final int FIXED = 0;
+    static final int AIMD = 1;
+    static final int GRADIENT = 2;
+
+    static final long WINDOW = 100; // Milliseconds of samples the limit is recalculated from
+
+    private static ExecutorService rejector = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "rejector");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private Executor workers;
+    private int algorithm;
+    private int minLimit;
+    private int maxLimit; // Also the number of worker threads
+    private double limit;
+    private int inFlight; // Handlers running
+    private int peakInFlight; // Most handlers running at once in the current window
+    private ArrayDeque<Waiting> queue = new ArrayDeque<Waiting>();
+    private int queueDepth;
+    private long queueTimeout; // Milliseconds a handler may wait for a slot
+    private long latencyTarget; // Nanoseconds, AIMD backs off above this
+    private int retryAfter; // Seconds clients are told to wait after a 503
+
+    private LongAdder sampleSum = new LongAdder(); // Nanoseconds
+    private LongAdder sampleCount = new LongAdder();
+    private volatile long windowEnd;
+    private double longRtt; // Long term average latency for gradient, nanoseconds
+
+    private LongAdder rejected = new LongAdder();
+    private LongAdder expired = new LongAdder();
+
+    /**
+     * A task that is not a whole connection, which turns its client away in its own way instead of with a 503
+     * on the socket
+     */
+    interface Refusable extends Runnable {
+        /**
+         * Called instead of run, on a thread that may block briefly
+         * @param reason why, for the Rejected503 event
+         */
+        void refuse(String reason);
+    }
+
+    /**
+     * A handler waiting for a slot
+     */
+    private static class Waiting {
+        final Runnable task;
+        final long since;
+
+        Waiting(Runnable task, long since) {
+            this.task = task;
+            this.since = since;
+        }
+    }
+
+    public AdmissionController(Executor workers, int algorithm, int minLimit, int maxLimit, int queueDepth, long queueTimeout,
+                               long latencyTarget, int retryAfter) {
+        this.workers = workers;
+        this.algorithm = algorithm;
+        this.minLimit = Math.max(1, Math.min(minLimit, maxLimit));
+        this.maxLimit = maxLimit;
+        this.limit = maxLimit;
+        this.queueDepth = queueDepth;
+        this.queueTimeout = queueTimeout;
+        this.latencyTarget = latencyTarget * 1000000;
+        this.retryAfter = retryAfter;
+        this.windowEnd = System.currentTimeMillis() + WINDOW;
+
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "admission-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(10, queueTimeout / 2);
+        sweeper.scheduleWithFixedDelay(this::drain, period, period, TimeUnit.MILLISECONDS); //Expires waiters even when no handler finishes
+    }
+
+    /**
+     * Names the limit algorithm given with --admission
+     */
+    static int algorithm(String name) {
+        switch (name) {
+            case "fixed":
+                return FIXED;
+            case "aimd":
+                return AIMD;
+            default:
+                return GRADIENT;
+        }
+    }
+
+    /**
+     * Runs the handler now if the limit allows, otherwise queues it
+     * @throws RejectedExecutionException when the queue is full, the caller answers with 503
+     */
+    public void execute(Runnable task) {
+        synchronized (this) {
+            if (inFlight >= (int) limit || !queue.isEmpty()) { //Don't overtake handlers already waiting
+                if (queue.size() >= queueDepth) {
+                    rejected.increment();
+                    throw new RejectedExecutionException("Concurrency limit reached");
+                }
+                queue.addLast(new Waiting(task, System.currentTimeMillis()));
+                return;
+            }
+            inFlight++;
+            peakInFlight = Math.max(peakInFlight, inFlight);
+        }
+        start(task);
+    }
+
+    private void start(Runnable task) {
+        workers.execute(() -> {
+            current.set(this);
+            try {
+                task.run();
+            } finally {
+                current.remove();
+                synchronized (this) {
+                    inFlight--;
+                }
+                drain();
+            }
+        });
+    }
+
+    /**
+     * Starts queued handlers while there is room under the limit and answers the ones that waited too long
+     */
+    void drain() {
+        List<Runnable> ready = new ArrayList<Runnable>();
+        List<Runnable> late = new ArrayList<Runnable>();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Iterator<Waiting> it = queue.iterator();
+            while (it.hasNext()) {
+                Waiting w = it.next();
+                if (now - w.since > queueTimeout) {
+                    it.remove();
+                    late.add(w.task);
+                } else if (inFlight < (int) limit) {
+                    it.remove();
+                    inFlight++;
+                    peakInFlight = Math.max(peakInFlight, inFlight);
+                    ready.add(w.task);
+                }
+            }
+        }
+        for (Runnable task : late) {
+            expired.increment();
+            if (task instanceof SocketHandler) reject(((SocketHandler) task).socket(), "queue timeout");
+            else if (task instanceof Refusable) rejector.execute(() -> ((Refusable) task).refuse("queue timeout"));
+        }
+        for (Runnable task : ready) {
+            start(task);
+        }
+    }
+
+    /**
+     * @return the controller that started the handler running on this thread, null outside of a handler
+     */
+    static AdmissionController current() {
+        return current.get();
+    }
+
+    /**
+     * Takes one request latency into account. Called by SocketHandler after every response.
+     */
+    public void sample(long nanos) {
+        sampleSum.add(nanos);
+        sampleCount.increment();
+        long now = System.currentTimeMillis();
+        if (now < windowEnd) return;
+        synchronized (this) {
+            if (now < windowEnd) return; //Another thread closed the window first
+            windowEnd = now + WINDOW;
+            long count = sampleCount.sumThenReset();
+            long sum = sampleSum.sumThenReset();
+            if (count > 0) update((double) sum / count);
+            peakInFlight = inFlight;
+        }
+        drain(); //Limit may have grown
+    }
+
+    /**
+     * Recalculates the limit from the window's average latency. Called with the lock held.
+     */
+    private void update(double rtt) {
+        if (algorithm == AIMD) {
+            if (rtt > latencyTarget) {
+                limit = limit * 0.9;
+            } else if (peakInFlight >= (int) limit) { //Only grow a limit that is actually being reached
+                limit = limit + 1;
+            }
+        } else if (algorithm == GRADIENT) {
+            longRtt = longRtt == 0 ? rtt : longRtt * 0.95 + rtt * 0.05;
+            if (longRtt > 2 * rtt) longRtt = longRtt * 0.9; //Recover quickly after a latency spike has passed
+            double gradient = Math.max(0.5, Math.min(1.0, 1.5 * longRtt / rtt)); //Tolerates up to 1.5x the long term latency
+            double target = limit * gradient + Math.sqrt(limit);
+            if (target > limit && peakInFlight < limit / 2) target = limit; //Not limited by concurrency, don't grow
+            limit = limit * 0.8 + target * 0.2;
+        }
+        limit = Math.max(minLimit, Math.min(maxLimit, limit));
+    }
+
+    /**
+     * Answers a connection with 503 and Retry-After on the rejector thread
+     * @param reason why, for the Rejected503 event
+     */
+    void reject(Socket s, String reason) {
+        HttpEvents.rejected(s, reason);
+        String response = Response.getErrorMessage(503) + "\r\nRetry-After: " + retryAfter + "\r\n\r\n";
+        rejector.execute(() -> {
+            try {
+                s.setSoTimeout(1000);
+                OutputStream out = s.getOutputStream();
+                out.write(response.getBytes());
+                out.flush();
+            } catch (IOException e) {
+
+            }
+            GracefulClose.close(s);
+        });
+    }
+
+    /**
+     * @return how many handlers may run at once right now
+     */
+    public synchronized int limit() {
+        return (int) limit;
+    }
+
+    public synchronized int inFlight() {
+        return inFlight;
+    }
+
+    public synchronized int queued() {
+        return queue.size();
+    }
+
+    /**
+     * @return handlers turned away because the queue was full
+     */
+    public long rejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return handlers answered with 503 after waiting in the queue too long
+     */
+    public long expired() {
+        return expired.sum();
+    }
+}
@@ -0,0 +1,219 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded pool of direct buffers that responses are assembled in. A connection takes a buffer when it first
+ * writes and gives it back when its handler finishes, so in steady state no response allocates one. Response
+ * heads are encoded straight into the buffer, and an in-memory body goes out in the same gathering write as the
+ * head in front of it, so a small response is a single writev.
+ *
+ * The pool holds at most --buffer-pool buffers. When it is empty a new buffer is allocated and counted, and
+ * buffers returned to a full pool are dropped for the garbage collector.
+ */
+public class BufferPool {
+
+    static BufferPool shared = new BufferPool(16 << 10, 256); // Pool used by SocketHandler
+
+    private final int bufferSize;
+    private final int max; // Most idle buffers kept
+    private ConcurrentLinkedQueue<ByteBuffer> idle = new ConcurrentLinkedQueue<ByteBuffer>();
+    private AtomicInteger idleCount = new AtomicInteger();
+
+    private LongAdder acquired = new LongAdder();
+    private LongAdder allocated = new LongAdder(); // Buffers made because the pool was empty
+    private LongAdder writes = new LongAdder(); // Socket write calls made by Outputs
+
+    public BufferPool(int bufferSize, int max) {
+        this.bufferSize = bufferSize;
+        this.max = max;
+    }
+
+    /**
+     * Reads --buffer-size and --buffer-pool
+     */
+    public static void configure(ServerOptions options) {
+        shared = new BufferPool(Math.max(1024, options.getInt("buffer-size", 16 << 10)), options.getInt("buffer-pool", 256));
+    }
+
+    /**
+     * @return a cleared buffer, from the pool when there is one
+     */
+    public ByteBuffer acquire() {
+        acquired.increment();
+        ByteBuffer b = idle.poll();
+        if (b != null) {
+            idleCount.decrementAndGet();
+            return b;
+        }
+        allocated.increment();
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Gives a buffer back, dropping it if the pool is already full
+     */
+    public void release(ByteBuffer b) {
+        if (idleCount.incrementAndGet() > max) {
+            idleCount.decrementAndGet();
+            return;
+        }
+        b.clear();
+        idle.offer(b);
+    }
+
+    public long acquired() {
+        return acquired.sum();
+    }
+
+    public long allocated() {
+        return allocated.sum();
+    }
+
+    public int idle() {
+        return idleCount.get();
+    }
+
+    public long writes() {
+        return writes.sum();
+    }
+
+    /**
+     * Response stream of one connection. Bytes collect in a pooled buffer until a flush, a body or a full buffer
+     * sends them. Not thread safe, it belongs to the connection's handler.
+     */
+    static class Output extends OutputStream {
+        private final BufferPool pool;
+        private final Socket socket;
+        private WritableByteChannel channel; // Socket's own channel, or a wrapper around its stream
+        private ByteBuffer buf; // Taken on the first write, null once released
+        private ByteBuffer[] pair = new ByteBuffer[2]; // Head and body for gathering writes
+        private volatile long written; // Bytes handed to the socket so far, read by the write deadline's thread
+
+        Output(BufferPool pool, Socket socket) {
+            this.pool = pool;
+            this.socket = socket;
+        }
+
+        private ByteBuffer buffer() throws IOException {
+            if (buf == null) {
+                buf = pool.acquire();
+                channel = socket.getChannel(); //Present when the socket came from a ServerSocketChannel
+                if (channel == null) channel = Channels.newChannel(socket.getOutputStream());
+            }
+            return buf;
+        }
+
+        public void write(int b) throws IOException {
+            if (!buffer().hasRemaining()) flush();
+            buf.put((byte) b);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len > buffer().remaining()) {
+                flush();
+                if (len > buf.capacity()) { //Too big to stage, send it as is
+                    send(ByteBuffer.wrap(b, off, len));
+                    return;
+                }
+            }
+            buf.put(b, off, len);
+        }
+
+        /**
+         * Encodes a response head or other protocol text straight into the buffer, one byte per char as
+         * ISO-8859-1 does, without making a byte array
+         */
+        public void print(String s) throws IOException {
+            buffer();
+            int n = s.length();
+            for (int i = 0; i < n; i++) {
+                if (!buf.hasRemaining()) flush();
+                buf.put((byte) s.charAt(i));
+            }
+        }
+
+        /**
+         * Sends whatever is buffered together with an in-memory body, in one gathering write where the channel
+         * supports it
+         * @param body bytes to send, its position is advanced past them
+         */
+        public void write(ByteBuffer body) throws IOException {
+            buffer();
+            if (body.remaining() <= buf.remaining() && !(channel instanceof GatheringByteChannel)) {
+                buf.put(body); //Small body, one copy is cheaper than a second write
+                return;
+            }
+            if (buf.position() == 0 || !(channel instanceof GatheringByteChannel)) {
+                flush();
+                send(body);
+                return;
+            }
+            buf.flip();
+            pair[0] = buf;
+            pair[1] = body;
+            GatheringByteChannel out = (GatheringByteChannel) channel;
+            while (body.hasRemaining()) {
+                written += out.write(pair);
+                pool.writes.increment();
+            }
+            pair[1] = null;
+            buf.clear();
+        }
+
+        /**
+         * Sends part of a file with FileChannel.transferTo after whatever is buffered, which the JDK turns into
+         * sendfile where the platform has it, so file contents never pass through the heap
+         * @throws EOFException if the file shrank while it was being sent, as the length already went out in the
+         * head and the connection can only be closed
+         */
+        public void transfer(FileChannel file, long start, long count) throws IOException {
+            buffer();
+            flush();
+            long position = start;
+            long end = start + count;
+            while (position < end) {
+                long n = file.transferTo(position, end - position, channel);
+                pool.writes.increment();
+                if (n <= 0) throw new EOFException("File shrank while it was being sent, " + (end - position) + " bytes short");
+                position += n;
+                written += n;
+            }
+        }
+
+        public void flush() throws IOException {
+            if (buf == null || buf.position() == 0) return;
+            buf.flip();
+            send(buf);
+            buf.clear();
+        }
+
+        private void send(ByteBuffer b) throws IOException {
+            while (b.hasRemaining()) {
+                written += channel.write(b);
+                pool.writes.increment();
+            }
+        }
+
+        /**
+         * @return bytes sent so far, for telling a slow reader from one that stopped reading
+         */
+        long written() {
+            return written;
+        }
+
+        /**
+         * Gives the buffer back to the pool. Anything still buffered is thrown away, so flush first.
+         */
+        public void release() {
+            if (buf == null) return;
+            ByteBuffer b = buf;
+            buf = null;
+            pool.release(b);
+        }
+    }
+}
@@ -0,0 +1,262 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Short lived cache of CGI script output, for scripts whose answer doesn't change from one request to the next.
+ * Output is keyed by the script, the request target with its query, a hash of the decoded body and the values of
+ * the headers named by --cgi-cache-vary, and is kept for --cgi-cache-ttl. Entries are kept in least recently
+ * used order and evicted once their total size passes the byte budget.
+ *
+ * Identical requests that miss at the same time are coalesced: the first one runs the script and the rest wait
+ * for its output instead of starting the script again, so a burst on a cold or expired entry costs one run.
+ * For --cgi-cache-stale after an entry expires it is still served while one request refreshes it in the
+ * background (stale-while-revalidate).
+ *
+ * Only output from a script that finished cleanly with status 200 is stored. A script takes control with a
+ * Cache-Control header in its output: no-store, no-cache or private keep the response out of the cache, and
+ * max-age and stale-while-revalidate override the two configured times.
+ */
+public class CgiCache {
+
+    static CgiCache shared; // Cache used by SocketHandler.post, null unless turned on
+
+    private long ttl; // Milliseconds output is served without running the script again
+    private long stale; // Milliseconds after that it is still served while being refreshed
+    private long budget; // Most bytes held at once
+    private String[] vary; // Request headers whose values are part of the key
+
+    private LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true); // Access ordered for LRU
+    private long bytes; // Key and output bytes currently held
+    private ConcurrentHashMap<String, CompletableFuture<CgiPool.Result>> running = new ConcurrentHashMap<String, CompletableFuture<CgiPool.Result>>(); // Runs in progress, by key
+    private ExecutorService refresher = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "cgi-cache-refresh");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final CgiPool.Result PRIVATE = new CgiPool.Result(true, new byte[0]); // Handed to waiters when the output must not be shared
+
+    private LongAdder hits = new LongAdder();
+    private LongAdder staleHits = new LongAdder();
+    private LongAdder misses = new LongAdder();
+    private LongAdder coalesced = new LongAdder();
+
+    /**
+     * Runs the script for a request that missed
+     */
+    interface Loader {
+        /**
+         * @return the script's output, or null if it could not be run right now, which is passed on uncached
+         */
+        CgiPool.Result load() throws IOException, InterruptedException;
+    }
+
+    /**
+     * Cached output of one script run
+     */
+    private static class Entry {
+        final CgiPool.Result result;
+        final long fresh; // Served as is until then
+        final long until; // Served while being refreshed until then
+        final long size;
+
+        Entry(String key, CgiPool.Result result, long fresh, long until) {
+            this.result = result;
+            this.fresh = fresh;
+            this.until = until;
+            this.size = key.length() + result.output.length;
+        }
+    }
+
+    public CgiCache(long ttl, long stale, long budget, String[] vary) {
+        this.ttl = ttl;
+        this.stale = stale;
+        this.budget = budget;
+        this.vary = vary;
+    }
+
+    /**
+     * Turns the cache on with --cgi-cache=on. --cgi-cache-ttl and --cgi-cache-stale are in milliseconds,
+     * --cgi-cache-size is the byte budget and --cgi-cache-vary a comma separated list of request headers to key on.
+     */
+    public static void configure(ServerOptions options) {
+        shared = null;
+        if (!options.get("cgi-cache", "off").equals("on")) return;
+        String vary = options.get("cgi-cache-vary", "").trim();
+        shared = new CgiCache(options.getInt("cgi-cache-ttl", 1000), options.getInt("cgi-cache-stale", 0),
+                options.getInt("cgi-cache-size", 8 << 20), vary.isEmpty() ? new String[0] : vary.split("\\s*,\\s*"));
+    }
+
+    /**
+     * Builds the cache key of a request
+     * @param script path of the script
+     * @param target request target, query included
+     * @param body decoded body the script reads
+     * @param headers looks up a request header by name, null if absent
+     */
+    public String key(String script, String target, byte[] body, Function<String, String> headers) {
+        StringBuilder sb = new StringBuilder(script).append('\n').append(target).append('\n');
+        for (String name : vary) {
+            String value = headers.apply(name);
+            sb.append(value == null ? "" : value).append('\n');
+        }
+        try {
+            sb.append(Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(body)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); //Every JDK has SHA-256
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Answers a request from the cache, running the script only if nobody else is already running it for the
+     * same key
+     * @return the script's output, from the cache or from a run
+     */
+    public CgiPool.Result get(String key, Loader loader) throws IOException, InterruptedException {
+        long now = System.currentTimeMillis();
+        Entry e;
+        synchronized (this) {
+            e = entries.get(key);
+            if (e != null && now >= e.until) {
+                remove(key);
+                e = null;
+            }
+        }
+        if (e != null && now < e.fresh) {
+            hits.increment();
+            return e.result;
+        }
+        if (e != null) { //Stale, answer now and refresh behind it
+            staleHits.increment();
+            CompletableFuture<CgiPool.Result> run = new CompletableFuture<CgiPool.Result>();
+            if (running.putIfAbsent(key, run) == null) {
+                refresher.execute(() -> {
+                    try {
+                        load(key, loader, run);
+                    } catch (Exception ex) {
+                        //Stays stale, the next request after it expires runs the script itself
+                    }
+                });
+            }
+            return e.result;
+        }
+
+        misses.increment();
+        CompletableFuture<CgiPool.Result> run = new CompletableFuture<CgiPool.Result>();
+        CompletableFuture<CgiPool.Result> other = running.putIfAbsent(key, run);
+        if (other == null) return load(key, loader, run);
+
+        coalesced.increment();
+        try {
+            CgiPool.Result result = other.get();
+            return result == PRIVATE ? loader.load() : result; //Script opted out, it runs for every request
+        } catch (ExecutionException ex) { //Waiters get the same failure as the request that ran the script
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Runs the script, stores what it printed if that may be cached and hands it to everyone waiting on the run
+     */
+    private CgiPool.Result load(String key, Loader loader, CompletableFuture<CgiPool.Result> run) throws IOException, InterruptedException {
+        try {
+            CgiPool.Result result = loader.load();
+            run.complete(result != null && result.ok && !store(key, result) ? PRIVATE : result);
+            return result;
+        } catch (IOException | InterruptedException | RuntimeException ex) {
+            run.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            running.remove(key, run);
+        }
+    }
+
+    /**
+     * Caches a clean run unless the script said not to
+     * @return false if the script opted out of caching, so its output must not be shared either
+     */
+    private boolean store(String key, CgiPool.Result result) {
+        long maxAge = ttl, swr = stale;
+        int end = SocketHandler.cgiHeaderEnd(result.output, result.output.length);
+        if (end > 0) {
+            for (String line : new String(result.output, 0, end, StandardCharsets.ISO_8859_1).split("\r?\n")) {
+                int colon = line.indexOf(':');
+                if (colon < 0) continue;
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim().toLowerCase();
+                if (name.equalsIgnoreCase("Status") && !value.startsWith("200")) return true;
+                if (!name.equalsIgnoreCase("Cache-Control")) continue;
+                for (String directive : value.split("\\s*,\\s*")) {
+                    if (directive.equals("no-store") || directive.equals("no-cache") || directive.equals("private")) return false; //Script opted out
+                    if (directive.startsWith("max-age=")) maxAge = seconds(directive, maxAge);
+                    else if (directive.startsWith("stale-while-revalidate=")) swr = seconds(directive, swr);
+                }
+            }
+        }
+        if (maxAge <= 0) return false; //max-age=0
+
+        long now = System.currentTimeMillis();
+        Entry e = new Entry(key, result, now + maxAge, now + maxAge + swr);
+        if (e.size > budget) return true;
+        synchronized (this) {
+            remove(key);
+            entries.put(key, e);
+            bytes += e.size;
+            Iterator<Entry> it = entries.values().iterator();
+            while (bytes > budget && it.hasNext()) { //Least recently used first
+                Entry old = it.next();
+                it.remove();
+                bytes -= old.size;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the value of a directive like max-age=N in milliseconds, or the fallback if it is malformed
+     */
+    private static long seconds(String directive, long fallback) {
+        try {
+            return Long.parseLong(directive.substring(directive.indexOf('=') + 1)) * 1000;
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    private void remove(String key) { //Caller holds the lock
+        Entry old = entries.remove(key);
+        if (old != null) bytes -= old.size;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long staleHits() {
+        return staleHits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long coalesced() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return key and output bytes currently held
+     */
+    public synchronized long size() {
+        return bytes;
+    }
+}
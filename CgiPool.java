@@ -0,0 +1,298 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Keeps long-lived Perl workers for each CGI script so a POST doesn't pay for fork/exec, interpreter startup and
+ * loading CGI.pm every time. Each worker runs cgi_runner.pl, which compiles the script once into a sub, then loops
+ * reading one request (environment and body) at a time from its stdin pipe, calls the sub and writes the output
+ * back framed with its length. A worker only ever has one request in flight. Workers are started with the switches
+ * on the script's #! line, so a -T script runs with taint checks as it would when forked.
+ *
+ * Every script gets its own pool: at most --cgi-workers requests run a script at once, --cgi-warmup workers are
+ * started as soon as the script is first used, and a worker is replaced after --cgi-max-requests requests so
+ * leaks in a script don't build up forever.
+ */
+public class CgiPool {
+
+    static CgiPool shared; // Pool used by SocketHandler.post, null when scripts are forked per request
+
+    static final int WAIT_TIMEOUT = 5000; // Milliseconds a request waits for a free worker before getting a 503
+    static int timeout = 10000; // Milliseconds a script may run before it is killed, pooled or forked
+    static int maxOutput = 8 << 20; // Most bytes of output collected from a pooled or cached run
+
+    private static ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "cgi-timeout");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private String perl; // Interpreter to start workers with
+    private String runner; // Absolute path of cgi_runner.pl
+    private int workers; // Most requests running one script at once
+    private int warmup; // Workers started when a script is first used
+    private int maxRequests; // Requests a worker serves before it is replaced
+    private ConcurrentHashMap<String, ScriptPool> pools = new ConcurrentHashMap<String, ScriptPool>();
+    private ExecutorService spawner = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "cgi-spawner");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Output of one script run
+     */
+    static class Result {
+        final boolean ok; // Script ran to the end (or called exit) instead of dying
+        final byte[] output; // Everything the script printed
+
+        Result(boolean ok, byte[] output) {
+            this.ok = ok;
+            this.output = output;
+        }
+    }
+
+    /**
+     * Kills a script's process if it is still running once its time is up, so a hung script can't hold on to a
+     * worker thread. Has to be cancelled when the script is done.
+     */
+    static class Deadline implements Runnable {
+        private final Process process;
+        private final ScheduledFuture<?> future;
+        private volatile boolean expired;
+
+        Deadline(Process process) {
+            this.process = process;
+            this.future = timer.schedule(this, timeout, TimeUnit.MILLISECONDS);
+        }
+
+        public void run() {
+            if (process.isAlive()) {
+                expired = true;
+                process.destroyForcibly();
+            }
+        }
+
+        boolean expired() {
+            return expired;
+        }
+
+        /**
+         * Waits for the script to exit, which the deadline bounds
+         * @return 0 if it exited cleanly, 504 if it was killed for running too long, otherwise 500
+         */
+        int exitStatus() throws InterruptedException {
+            int code = process.waitFor();
+            if (expired) return 504;
+            return code == 0 ? 0 : 500;
+        }
+
+        void cancel() {
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * Workers for one script, idle ones kept most recently used first so the same few stay hot
+     */
+    private static class ScriptPool {
+        final String script;
+        final List<String> command; // Starts a worker: perl, the script's switches, the runner and the script
+        final Semaphore permits;
+        final ConcurrentLinkedDeque<Worker> idle = new ConcurrentLinkedDeque<Worker>();
+
+        ScriptPool(String script, List<String> command, int workers) {
+            this.script = script;
+            this.command = command;
+            this.permits = new Semaphore(workers);
+        }
+    }
+
+    /**
+     * One cgi_runner.pl process and the pipes to it
+     */
+    private static class Worker {
+        final Process process;
+        final OutputStream in; // Worker's stdin
+        final InputStream out; // Worker's stdout
+        int served;
+
+        Worker(Process process) {
+            this.process = process;
+            this.in = new BufferedOutputStream(process.getOutputStream());
+            this.out = new BufferedInputStream(process.getInputStream());
+        }
+
+        /**
+         * Sends one request and waits for the script's output
+         */
+        Result handle(Map<String, String> env, byte[] body) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            sb.append(env.size()).append('\n');
+            for (Map.Entry<String, String> e : env.entrySet()) {
+                sb.append(e.getKey()).append('=').append(e.getValue().replace('\n', ' ').replace('\r', ' ')).append('\n');
+            }
+            sb.append(body.length).append('\n');
+            in.write(sb.toString().getBytes(StandardCharsets.ISO_8859_1));
+            in.write(body);
+            in.flush();
+
+            int status = Integer.parseInt(readLine());
+            int length = Integer.parseInt(readLine());
+            if (length > maxOutput) throw new IOException("CGI output of " + length + " bytes is over " + maxOutput);
+            byte[] output = out.readNBytes(length);
+            if (output.length != length) throw new EOFException("CGI worker exited");
+            return new Result(status == 0, output);
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder sb = new StringBuilder();
+            int c;
+            while ((c = out.read()) != '\n') {
+                if (c < 0) throw new EOFException("CGI worker exited");
+                sb.append((char) c);
+            }
+            return sb.toString();
+        }
+
+        void stop() {
+            try {
+                in.close(); //Runner leaves its loop on end of input
+            } catch (IOException e) {
+
+            }
+            process.destroy();
+        }
+    }
+
+    public CgiPool(String perl, String runner, int workers, int warmup, int maxRequests) {
+        this.perl = perl;
+        this.runner = runner;
+        this.workers = workers;
+        this.warmup = Math.min(warmup, workers);
+        this.maxRequests = maxRequests;
+    }
+
+    /**
+     * Turns pooled CGI on with --cgi=pool. --cgi-workers, --cgi-warmup and --cgi-max-requests size each script's
+     * pool, --cgi-perl and --cgi-runner say how to start a worker. Without --cgi=pool, or if the runner can't be
+     * found, every POST forks the script as before. --cgi-timeout applies either way, and --cgi-max-output to every
+     * run whose output is collected in memory rather than streamed.
+     */
+    public static void configure(ServerOptions options) {
+        timeout = options.getInt("cgi-timeout", 10000);
+        maxOutput = options.getInt("cgi-max-output", 8 << 20);
+        shared = null;
+        if (!options.get("cgi", "fork").equals("pool")) return;
+
+        File runner = new File(options.get("cgi-runner", "cgi_runner.pl"));
+        if (!runner.canRead()) {
+            System.err.println("CGI runner " + runner + " not found, forking a process per request");
+            return;
+        }
+        shared = new CgiPool(options.get("cgi-perl", "perl"), runner.getAbsolutePath(),
+                options.getInt("cgi-workers", 4), options.getInt("cgi-warmup", 1), options.getInt("cgi-max-requests", 1000));
+    }
+
+    /**
+     * Runs a script on one of its workers
+     * @param script path of the script
+     * @param env CGI environment variables for this request
+     * @param body bytes the script reads from stdin
+     * @return the script's output, or null if all of the script's workers stayed busy for WAIT_TIMEOUT
+     * @throws InterruptedIOException if the script ran past the timeout and its worker was killed
+     */
+    public Result run(String script, Map<String, String> env, byte[] body) throws IOException, InterruptedException {
+        ScriptPool pool = pools.computeIfAbsent(script, this::newPool);
+        if (!pool.permits.tryAcquire(WAIT_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            return null;
+        }
+        try {
+            Worker w = pool.idle.pollFirst();
+            while (w != null && !w.process.isAlive()) {
+                w = pool.idle.pollFirst(); //Died while idle, e.g. killed from outside
+            }
+            if (w == null) {
+                w = spawn(pool);
+            }
+
+            Result result;
+            Deadline deadline = new Deadline(w.process);
+            try {
+                result = w.handle(env, body);
+            } catch (IOException | NumberFormatException e) {
+                w.stop(); //Pipe is out of step with the worker, it can't be reused
+                if (deadline.expired()) throw new InterruptedIOException(script + " timed out");
+                throw new IOException("CGI worker for " + script + " failed", e);
+            } finally {
+                deadline.cancel();
+            }
+
+            if (++w.served >= maxRequests) {
+                w.stop();
+                spawner.execute(() -> replenish(pool)); //Start the replacement off the request path
+            } else {
+                pool.idle.addFirst(w);
+            }
+            return result;
+        } finally {
+            pool.permits.release();
+        }
+    }
+
+    private ScriptPool newPool(String script) {
+        List<String> command = new ArrayList<String>();
+        command.add(perl);
+        command.addAll(switches(script));
+        command.add(runner);
+        command.add(script);
+        command.add(String.valueOf(maxOutput));
+        ScriptPool pool = new ScriptPool(script, command, workers);
+        for (int i = 0; i < warmup; i++) {
+            spawner.execute(() -> replenish(pool));
+        }
+        return pool;
+    }
+
+    /**
+     * Adds an idle worker to a pool unless it already has enough to cover the warm up count
+     */
+    private void replenish(ScriptPool pool) {
+        if (pool.idle.size() >= warmup) return;
+        try {
+            pool.idle.addLast(spawn(pool));
+        } catch (IOException e) {
+            System.err.println("Could not start CGI worker for " + pool.script + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the switches off a script's #! line, like -w and -T from "#!/usr/bin/perl -wT". Perl only honours -T
+     * on the command line, and never looks at the #! line of a file it is handed as code, so the runner has to be
+     * started with them.
+     * @return the switches, none if the script can't be read or has no #! line
+     */
+    static List<String> switches(String script) {
+        List<String> switches = new ArrayList<String>();
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(script), StandardCharsets.ISO_8859_1))) {
+            String line = r.readLine();
+            if (line == null || !line.startsWith("#!")) return switches;
+            String[] words = line.substring(2).trim().split("\\s+");
+            int i = 1; //Past the interpreter
+            if (words[0].endsWith("/env") && i < words.length) i++; //#!/usr/bin/env perl
+            for (; i < words.length; i++) {
+                if (words[i].startsWith("-")) switches.add(words[i]);
+            }
+        } catch (IOException e) {
+            //Run without them, the runner reports the script as missing
+        }
+        return switches;
+    }
+
+    private Worker spawn(ScriptPool pool) throws IOException {
+        ProcessBuilder pb = new ProcessBuilder(pool.command);
+        pb.redirectError(ProcessBuilder.Redirect.INHERIT); //Script warnings and errors end up in the server log
+        return new Worker(pb.start());
+    }
+}
@@ -1,16 +1,82 @@
 import java.io.*;
 import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Test client. With only a port it sends one request line read from stdin and prints the reply. With options it
+ * is a load generator: --connections connections each send requests from the --mix for --duration seconds, either
+ * back to back (closed loop) or, with --rate, on a fixed schedule of that many requests per second in total
+ * (open loop). In open loop latency is measured from when each request was due to be sent rather than when it
+ * went out, so a stalled server is charged for the requests that queued up behind the stall instead of hiding
+ * them (coordinated omission); the uncorrected service time is reported next to it.
+ *
+ * Usage: java Client <port> [--host=localhost] [--connections=16] [--rate=REQUESTS_PER_SECOND] [--duration=10]
+ *        [--warmup=2] [--mix=SPEC] [--keep-alive=false] [--timeout=MS] [--out=FILE]
+ *
+ * A mix is a comma separated list of "METHOD PATH[ BODY][:WEIGHT]", e.g.
+ * "GET /index.html:70,HEAD /small.txt:20,POST /cgi_bin/echo.cgi a=b:10". POST bodies are sent form encoded.
+ */
 class Client {
 
-    public static void main(String[] args) {    
+    static String host = "localhost";
+    static int port;
+    static boolean keepAlive = true;
+    static int timeout = 10000; // Socket read timeout, milliseconds
+
+    public static void main(String[] args) {
+        port = Integer.parseInt(args[0]);
+        if (args.length == 1) {
+            interactive();
+            return;
+        }
+
+        ServerOptions options = new ServerOptions(args, 1);
+        host = options.get("host", "localhost");
+        keepAlive = options.getBoolean("keep-alive", true);
+        timeout = options.getInt("timeout", 10000);
+        int connections = Math.max(1, options.getInt("connections", 16));
+        int rate = options.getInt("rate", 0);
+        long duration = options.getInt("duration", 10) * 1000000000L;
+        long warmup = options.getInt("warmup", 2) * 1000000000L;
+        Mix mix = new Mix(options.get("mix", "GET /index.html"));
+
+        long start = System.nanoTime() + 100000000; //Gives every connection time to start
+        Load[] loads = new Load[connections];
+        ExecutorService threads = Workers.newVirtualThreadPerTaskExecutor();
+        for (int i = 0; i < connections; i++) {
+            long interval = rate > 0 ? connections * 1000000000L / rate : 0;
+            long first = start + (rate > 0 ? i * 1000000000L / rate : 0); //Spread the connections over one interval
+            loads[i] = new Load(mix, new Random(i), first, interval, start + warmup, start + warmup + duration);
+            threads.execute(loads[i]);
+        }
+        threads.shutdown();
         try {
+            threads.awaitTermination(duration + warmup + 60000000000L, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
 
-        
-            int port = Integer.parseInt(args[0]);
+        Summary summary = new Summary(loads, rate, connections, duration);
+        System.out.print(summary.text());
+        String out = options.get("out", null);
+        if (out != null) {
+            try (PrintWriter w = new PrintWriter(new FileWriter(out))) {
+                w.println(summary.json());
+            } catch (IOException e) {
+                System.err.println("Could not write " + out + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Sends one request line from stdin and prints the reply
+     */
+    static void interactive() {
+        try {
 
             String sentence; //Input from user
-            String modifiedSentence; //Modified string from the server
 
             //Reader for user input
             BufferedReader inFromUser = new BufferedReader(new InputStreamReader(System.in));
@@ -40,4 +106,420 @@ class Client {
             e.printStackTrace();
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Weighted set of requests, each prebuilt as bytes
+     */
+    static class Mix {
+        final byte[][] requests;
+        final boolean[] head; // Response has no body
+        final int[] cumulative; // Running total of the weights
+        final int total;
+
+        Mix(String spec) {
+            String[] entries = spec.split(",");
+            requests = new byte[entries.length][];
+            head = new boolean[entries.length];
+            cumulative = new int[entries.length];
+            int sum = 0;
+            for (int i = 0; i < entries.length; i++) {
+                String entry = entries[i].trim();
+                int weight = 1;
+                int colon = entry.lastIndexOf(':');
+                if (colon > 0 && entry.substring(colon + 1).matches("\\d+")) {
+                    weight = Integer.parseInt(entry.substring(colon + 1));
+                    entry = entry.substring(0, colon);
+                }
+                String[] parts = entry.split(" ", 3);
+                String method = parts[0].toUpperCase();
+                String path = parts.length > 1 ? parts[1] : "/";
+                String body = parts.length > 2 ? parts[2] : null;
+
+                StringBuilder sb = new StringBuilder();
+                sb.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+                sb.append("Host: ").append(host).append(':').append(port).append("\r\n");
+                sb.append("User-Agent: Client\r\n");
+                if (!keepAlive) sb.append("Connection: close\r\n");
+                if (body != null || method.equals("POST")) {
+                    if (body == null) body = "";
+                    sb.append("Content-Type: application/x-www-form-urlencoded\r\n");
+                    sb.append("Content-Length: ").append(body.length()).append("\r\n");
+                }
+                sb.append("\r\n");
+                if (body != null) sb.append(body);
+                requests[i] = sb.toString().getBytes();
+                head[i] = method.equals("HEAD");
+                sum += weight;
+                cumulative[i] = sum;
+            }
+            total = sum;
+        }
+
+        int pick(Random random) {
+            int r = random.nextInt(total);
+            for (int i = 0; i < cumulative.length; i++) {
+                if (r < cumulative[i]) return i;
+            }
+            return cumulative.length - 1;
+        }
+    }
+
+    /**
+     * One connection's share of the load, run on its own thread
+     */
+    static class Load implements Runnable {
+        private final Mix mix;
+        private final Random random;
+        private long next; // When the next request is due, open loop only
+        private final long interval; // Nanoseconds between requests, 0 for closed loop
+        private final long measureFrom; // Requests due before this are warm up
+        private final long end;
+
+        final Histogram corrected = new Histogram(); // From when each request was due, open loop only
+        final Histogram service = new Histogram(); // From when each request was sent
+        final long[] statuses = new long[6]; // Responses by first digit of the status code
+        long errors; // Connection failures, timeouts and malformed responses
+        long connects;
+
+        private Socket socket;
+        private InputStream in;
+        private OutputStream out;
+        private byte[] buf = new byte[16384];
+        private int pos; // Unread bytes in buf are pos..limit
+        private int limit;
+
+        Load(Mix mix, Random random, long first, long interval, long measureFrom, long end) {
+            this.mix = mix;
+            this.random = random;
+            this.next = first;
+            this.interval = interval;
+            this.measureFrom = measureFrom;
+            this.end = end;
+        }
+
+        public void run() {
+            while (true) {
+                long due;
+                if (interval > 0) {
+                    due = next;
+                    next += interval;
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) LockSupport.parkNanos(wait); //Behind schedule means sending right away
+                } else {
+                    due = System.nanoTime();
+                }
+                if (due >= end) break;
+
+                int i = mix.pick(random);
+                long sent = System.nanoTime();
+                int status = send(mix.requests[i], mix.head[i]);
+                long done = System.nanoTime();
+                if (due < measureFrom) continue;
+                if (status < 0) {
+                    errors++;
+                    continue;
+                }
+                statuses[Math.min(status / 100, 5)]++;
+                service.record((done - sent) / 1000);
+                if (interval > 0) corrected.record((done - due) / 1000);
+            }
+            close();
+        }
+
+        /**
+         * Sends one request and reads its response, reconnecting first if needed
+         * @return status code, or -1 if the request failed
+         */
+        private int send(byte[] request, boolean head) {
+            try {
+                if (socket == null) connect();
+                out.write(request);
+                out.flush();
+                int status = readResponse(head);
+                if (status < 0) close();
+                return status;
+            } catch (IOException e) {
+                close();
+                return -1;
+            }
+        }
+
+        private void connect() throws IOException {
+            socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), timeout);
+            socket.setSoTimeout(timeout);
+            in = socket.getInputStream();
+            out = new BufferedOutputStream(socket.getOutputStream());
+            pos = 0;
+            limit = 0;
+            connects++;
+        }
+
+        private void close() {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+
+                }
+            }
+            socket = null;
+        }
+
+        /**
+         * Reads a response head and skips its body, delimited by Content-Length, chunked encoding or the end of
+         * the connection. Closes the connection when the server won't keep it open.
+         * @return status code, or -1 if the response was cut off or malformed
+         */
+        private int readResponse(boolean head) throws IOException {
+            String line = readLine();
+            if (line == null || !line.startsWith("HTTP/1.") || line.length() < 12) return -1;
+            int status;
+            try {
+                status = Integer.parseInt(line.substring(9, 12));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+            boolean persistent = line.startsWith("HTTP/1.1");
+            long length = -1;
+            boolean chunked = false;
+            while ((line = readLine()) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon < 0) continue;
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length")) {
+                    length = Long.parseLong(value);
+                } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                    chunked = value.equalsIgnoreCase("chunked");
+                } else if (name.equalsIgnoreCase("Connection")) {
+                    persistent = value.equalsIgnoreCase("keep-alive");
+                }
+            }
+            if (line == null) { //Head ended with the connection, as the server's bare error responses do
+                close();
+                return status;
+            }
+
+            if (head || status == 204 || status == 304 || status / 100 == 1) {
+                // No body
+            } else if (chunked) {
+                while (true) {
+                    String size = readLine();
+                    if (size == null) return -1;
+                    int semi = size.indexOf(';');
+                    long n = Long.parseLong((semi < 0 ? size : size.substring(0, semi)).trim(), 16);
+                    if (n == 0) {
+                        while ((line = readLine()) != null && !line.isEmpty()) {
+                            //Trailers
+                        }
+                        break;
+                    }
+                    if (!skip(n + 2)) return -1; //Chunk and its CRLF
+                }
+            } else if (length >= 0) {
+                if (!skip(length)) return -1;
+            } else {
+                while (fill()) { //Body runs to the end of the connection
+                    pos = limit;
+                }
+                persistent = false;
+            }
+            if (!persistent || !keepAlive) close();
+            return status;
+        }
+
+        private boolean fill() throws IOException {
+            if (pos == limit) {
+                pos = 0;
+                limit = 0;
+            }
+            if (limit == buf.length) { //Compact to make room
+                System.arraycopy(buf, pos, buf, 0, limit - pos);
+                limit -= pos;
+                pos = 0;
+            }
+            int n = in.read(buf, limit, buf.length - limit);
+            if (n <= 0) return false;
+            limit += n;
+            return true;
+        }
+
+        /**
+         * @return the next line without its CRLF, or null at the end of the connection. A last line cut off by the
+         * end of the connection is returned as is.
+         */
+        private String readLine() throws IOException {
+            int scanned = 0; // Bytes past pos already searched, fill keeps them in place relative to pos
+            while (true) {
+                for (int i = pos + scanned; i < limit; i++) {
+                    if (buf[i] == '\n') {
+                        int end = i > pos && buf[i - 1] == '\r' ? i - 1 : i;
+                        String line = new String(buf, pos, end - pos, "ISO-8859-1");
+                        pos = i + 1;
+                        return line;
+                    }
+                }
+                scanned = limit - pos;
+                if (!fill()) {
+                    if (pos == limit) return null;
+                    String line = new String(buf, pos, limit - pos, "ISO-8859-1"); //Unterminated, as bare error responses are
+                    pos = limit;
+                    return line;
+                }
+            }
+        }
+
+        private boolean skip(long n) throws IOException {
+            while (n > 0) {
+                if (pos == limit && !fill()) return false;
+                int take = (int) Math.min(n, limit - pos);
+                pos += take;
+                n -= take;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Log-linear latency histogram in microseconds with three significant digits, in the manner of
+     * HdrHistogram: values below 2048 have a bucket each, above that every power of two is split into 1024
+     */
+    static class Histogram {
+        static final int SUB = 1024;
+        static final int BUCKETS = 2 * SUB + 30 * SUB; // Up to about 2^40 microseconds
+        final long[] counts = new long[BUCKETS];
+        long total;
+        long sum;
+        long max;
+
+        static int index(long v) {
+            if (v < 2 * SUB) return (int) Math.max(0, v);
+            int shift = 63 - Long.numberOfLeadingZeros(v) - 10; //v >> shift is in [1024, 2048)
+            return Math.min(BUCKETS - 1, 2 * SUB + (shift - 1) * SUB + (int) (v >> shift) - SUB);
+        }
+
+        /**
+         * @return the highest value that lands in a bucket
+         */
+        static long value(int index) {
+            if (index < 2 * SUB) return index;
+            int shift = (index - 2 * SUB) / SUB + 1;
+            long sub = (index - 2 * SUB) % SUB + SUB;
+            return ((sub + 1) << shift) - 1;
+        }
+
+        void record(long micros) {
+            counts[index(micros)]++;
+            total++;
+            sum += micros;
+            max = Math.max(max, micros);
+        }
+
+        void add(Histogram h) {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += h.counts[i];
+            }
+            total += h.total;
+            sum += h.sum;
+            max = Math.max(max, h.max);
+        }
+
+        long percentile(double p) {
+            if (total == 0) return 0;
+            long rank = (long) Math.ceil(p / 100 * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= Math.max(1, rank)) return Math.min(value(i), max);
+            }
+            return max;
+        }
+
+        double mean() {
+            return total == 0 ? 0 : (double) sum / total;
+        }
+    }
+
+    /**
+     * Totals over all connections
+     */
+    static class Summary {
+        static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+
+        final Histogram corrected = new Histogram();
+        final Histogram service = new Histogram();
+        final long[] statuses = new long[6];
+        long errors;
+        long connects;
+        final int rate;
+        final int connections;
+        final double seconds;
+
+        Summary(Load[] loads, int rate, int connections, long duration) {
+            for (Load l : loads) {
+                corrected.add(l.corrected);
+                service.add(l.service);
+                for (int i = 0; i < statuses.length; i++) {
+                    statuses[i] += l.statuses[i];
+                }
+                errors += l.errors;
+                connects += l.connects;
+            }
+            this.rate = rate;
+            this.connections = connections;
+            this.seconds = duration / 1e9;
+        }
+
+        String text() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format(Locale.ROOT, "%s loop, %d connections, %.0f s%n", rate > 0 ? "open" : "closed", connections, seconds));
+            sb.append(String.format(Locale.ROOT, "requests: %d errors: %d connects: %d throughput: %.1f req/s%n",
+                    service.total, errors, connects, service.total / seconds));
+            sb.append(String.format(Locale.ROOT, "status: 1xx %d 2xx %d 3xx %d 4xx %d 5xx %d%n", statuses[1], statuses[2], statuses[3],
+                    statuses[4], statuses[5]));
+            if (rate > 0) sb.append(line("latency (us, corrected)", corrected));
+            sb.append(line(rate > 0 ? "service time (us)" : "latency (us)", service));
+            return sb.toString();
+        }
+
+        private static String line(String name, Histogram h) {
+            StringBuilder sb = new StringBuilder(name).append(':');
+            sb.append(String.format(Locale.ROOT, " mean %.1f", h.mean()));
+            for (double p : PERCENTILES) {
+                sb.append(" p").append(label(p)).append(' ').append(h.percentile(p));
+            }
+            return sb.append(" max ").append(h.max).append('\n').toString();
+        }
+
+        String json() {
+            StringBuilder sb = new StringBuilder("{");
+            sb.append("\"mode\":\"").append(rate > 0 ? "open" : "closed").append("\",\"rate\":").append(rate);
+            sb.append(",\"connections\":").append(connections);
+            sb.append(String.format(Locale.ROOT, ",\"duration_s\":%.1f,\"requests\":%d,\"errors\":%d,\"connects\":%d,\"throughput_rps\":%.1f",
+                    seconds, service.total, errors, connects, service.total / seconds));
+            sb.append(",\"status\":{");
+            for (int i = 1; i < statuses.length; i++) {
+                sb.append(i > 1 ? "," : "").append('"').append(i).append("xx\":").append(statuses[i]);
+            }
+            sb.append('}');
+            if (rate > 0) sb.append(",\"latency_us\":").append(json(corrected));
+            sb.append(",\"service_time_us\":").append(json(service));
+            return sb.append('}').toString();
+        }
+
+        private static String json(Histogram h) {
+            StringBuilder sb = new StringBuilder("{");
+            sb.append(String.format(Locale.ROOT, "\"mean\":%.1f", h.mean()));
+            for (double p : PERCENTILES) {
+                sb.append(",\"p").append(label(p)).append("\":").append(h.percentile(p));
+            }
+            return sb.append(",\"max\":").append(h.max).append('}').toString();
+        }
+
+        private static String label(double p) {
+            return p == Math.floor(p) ? Integer.toString((int) p) : Double.toString(p);
+        }
+    }
+}
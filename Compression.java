@@ -0,0 +1,211 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * Negotiated gzip/deflate for static text files. Compressed variants are made once per file and encoding and kept
+ * in direct buffers, so later requests send them straight from memory, and a precompressed file.gz next to the file
+ * is used as its gzip variant without compressing anything. Small files are compressed the first time they are
+ * asked for; larger ones are compressed on a background thread while that first request gets the identity body,
+ * so connection threads never spend long in a Deflater.
+ *
+ * Variants are kept in least recently used order and evicted once their total size passes the byte budget. A
+ * variant is only used while the file still has the modification time and length it was made from.
+ */
+public class Compression {
+
+    static Compression shared; // Variants used by SocketHandler, null when compression is turned off
+
+    static final int INLINE_LIMIT = 64 << 10; // Files up to this size are compressed on the request thread
+
+    private long minSize; // Smaller files are always sent as they are
+    private long maxFile; // Larger files only use a precompressed .gz
+    private long budget; // Most compressed bytes held at once
+
+    private LinkedHashMap<String, Variant> variants = new LinkedHashMap<String, Variant>(64, 0.75f, true); // Access ordered for LRU
+    private long bytes; // Compressed bytes currently held
+    private Set<String> pending = ConcurrentHashMap.newKeySet(); // Variants being made in the background
+    private ExecutorService compressor;
+
+    /**
+     * A compressed copy of a file, in memory or in a precompressed sibling file
+     */
+    static class Variant {
+        final String encoding; // gzip or deflate
+        final long sourceModified; // Modification time of the file it was made from
+        final long sourceLength; // Length of the file it was made from
+        private final ByteBuffer body; // Compressed body, null when it comes from file
+        final File file; // Precompressed sibling, null when the body is in memory
+
+        Variant(String encoding, long sourceModified, long sourceLength, ByteBuffer body, File file) {
+            this.encoding = encoding;
+            this.sourceModified = sourceModified;
+            this.sourceLength = sourceLength;
+            this.body = body;
+            this.file = file;
+        }
+
+        /**
+         * @return a buffer over the compressed body with its own position, or null if it has to be read from file
+         */
+        ByteBuffer body() {
+            return body == null ? null : body.duplicate();
+        }
+
+        long size() {
+            return body == null ? 0 : body.capacity();
+        }
+    }
+
+    public Compression(long minSize, long maxFile, long budget, int threads) {
+        this.minSize = minSize;
+        this.maxFile = maxFile;
+        this.budget = budget;
+        this.compressor = new ThreadPoolExecutor(threads, threads, 1000, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                r -> {
+                    Thread t = new Thread(r, "compressor");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY); //Serving comes first
+                    return t;
+                });
+    }
+
+    /**
+     * Sets up compression from the startup options. --compress=off turns it off, --compress-min and
+     * --compress-max-file bound which files get compressed and --compress-cache-size is the memory budget.
+     */
+    public static void configure(ServerOptions options) {
+        if (options.get("compress", "on").equals("off")) {
+            shared = null;
+            return;
+        }
+        shared = new Compression(options.getInt("compress-min", 1024), options.getInt("compress-max-file", 4 << 20),
+                options.getInt("compress-cache-size", 32 << 20), options.getInt("compress-threads", 1));
+    }
+
+    /**
+     * @return whether responses of this type depend on Accept-Encoding
+     */
+    static boolean varies(String mime) {
+        return shared != null && compressible(mime);
+    }
+
+    /**
+     * Only text compresses well, the image and archive types Response.getMimeType knows are compressed already
+     */
+    static boolean compressible(String mime) {
+        return mime.startsWith("text/");
+    }
+
+    /**
+     * Picks the encoding to answer with from an Accept-Encoding header, gzip over deflate
+     * @return gzip, deflate, or null if the client takes neither
+     */
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) return null;
+        boolean deflate = false;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.trim().split(";");
+            String name = parts[0].trim().toLowerCase();
+            if (parts.length > 1 && parts[1].trim().matches("q=0(\\.0*)?")) continue; //Explicitly refused
+            if (name.equals("gzip") || name.equals("x-gzip")) return "gzip";
+            if (name.equals("deflate")) deflate = true;
+        }
+        return deflate ? "deflate" : null;
+    }
+
+    /**
+     * Finds the compressed variant to send for a file, making it if it doesn't exist yet
+     * @param file the file being sent
+     * @param acceptEncoding the request's Accept-Encoding header, may be null
+     * @param lastModified modification time of the file
+     * @param length length of the file
+     * @param content the file's body if it is already in memory, otherwise null
+     * @return the variant, or null if the identity body should be sent, including while a large file is being
+     * compressed in the background
+     */
+    public Variant variant(File file, String acceptEncoding, long lastModified, long length, ByteBuffer content) {
+        if (length < minSize || !compressible(Response.getMimeType(file.getPath()))) return null;
+        String encoding = negotiate(acceptEncoding);
+        if (encoding == null) return null;
+
+        String key = file.getPath() + ";" + encoding;
+        Variant v;
+        synchronized (this) {
+            v = variants.get(key);
+        }
+        if (v != null && v.sourceModified == lastModified && v.sourceLength == length) return v;
+
+        if (encoding.equals("gzip")) {
+            File gz = new File(file.getPath() + ".gz");
+            if (gz.isFile() && gz.lastModified() >= lastModified) { //Precompressed and not older than the file
+                return put(key, new Variant(encoding, lastModified, length, null, gz));
+            }
+        }
+        if (length > maxFile || length > budget) return null;
+
+        if (length <= INLINE_LIMIT) {
+            try {
+                return put(key, compress(file, encoding, lastModified, length, content));
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        if (pending.add(key)) {
+            compressor.execute(() -> {
+                try {
+                    put(key, compress(file, encoding, lastModified, length, null));
+                } catch (IOException e) {
+                    //File went away or changed, the next request tries again
+                } finally {
+                    pending.remove(key);
+                }
+            });
+        }
+        return null;
+    }
+
+    private static Variant compress(File file, String encoding, long lastModified, long length, ByteBuffer content) throws IOException {
+        byte[] data;
+        if (content != null) {
+            data = new byte[content.remaining()];
+            content.duplicate().get(data);
+        } else {
+            data = Files.readAllBytes(file.toPath());
+            if (data.length != length || file.lastModified() != lastModified) throw new IOException("changed while reading");
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 3 + 64);
+        try (OutputStream z = encoding.equals("gzip") ? new GZIPOutputStream(out, 8192) : new DeflaterOutputStream(out)) {
+            z.write(data);
+        }
+        byte[] compressed = out.toByteArray();
+        ByteBuffer body = ByteBuffer.allocateDirect(compressed.length); //Written to the socket without another copy
+        body.put(compressed).flip();
+        return new Variant(encoding, lastModified, length, body, null);
+    }
+
+    private synchronized Variant put(String key, Variant v) {
+        Variant old = variants.put(key, v);
+        if (old != null) bytes -= old.size();
+        bytes += v.size();
+        Iterator<Variant> it = variants.values().iterator();
+        while (bytes > budget && it.hasNext()) { //Evict least recently used until back under budget
+            Variant eldest = it.next();
+            if (eldest == v) continue;
+            it.remove();
+            bytes -= eldest.size();
+        }
+        return v;
+    }
+
+    /**
+     * @return compressed bytes currently held
+     */
+    public synchronized long size() {
+        return bytes;
+    }
+}
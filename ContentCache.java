@@ -0,0 +1,212 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory cache of static files for GET and HEAD. Each entry keeps the file body, on the heap or in a direct
+ * buffer, together with its prebuilt entity headers, so a hit is answered without touching the filesystem.
+ * Entries are kept in least recently used order and evicted once the total body size passes the byte budget.
+ *
+ * Entries are revalidated in one of two ways. In watch mode (the default) the shared FileWatcher, watching each
+ * cached file's directory, drops entries as soon as the file changes, so hits cost no syscalls at all. In mtime mode every hit
+ * checks the file's modification time and length instead.
+ */
+public class ContentCache implements FileWatcher.Listener {
+
+    static ContentCache shared; // Cache used by SocketHandler, null when caching is turned off
+
+    private long budget; // Most body bytes held at once
+    private long maxFile; // Larger files are not cached and are sent with transferTo instead
+    private boolean offHeap; // Keep bodies in direct buffers instead of byte arrays
+    private boolean watch; // Revalidate with the WatchService instead of checking mtime on every hit
+
+    private LinkedHashMap<Path, Entry> entries = new LinkedHashMap<Path, Entry>(64, 0.75f, true); // Access ordered for LRU
+    private long bytes; // Body bytes currently held
+    private FileWatcher watcher;
+    private AtomicLong changes = new AtomicLong(); // Bumped on every invalidation, see get
+
+    private LongAdder hits = new LongAdder();
+    private LongAdder misses = new LongAdder();
+    private LongAdder evictions = new LongAdder();
+
+    /**
+     * A cached file
+     */
+    static class Entry {
+        final String headers; // Content-Type through Allow, see Response.getEntityHeaders
+        final long lastModified;
+        final long length;
+        final String etag; // Tag of this version of the file, null when ETags are off
+        private final byte[] heap;
+        private final ByteBuffer direct;
+
+        Entry(String headers, long lastModified, byte[] heap, ByteBuffer direct) {
+            this.headers = headers;
+            this.lastModified = lastModified;
+            this.length = heap != null ? heap.length : direct.capacity();
+            this.etag = FileMetadata.etag(lastModified, length);
+            this.heap = heap;
+            this.direct = direct;
+        }
+
+        /**
+         * @return a buffer over the body with its own position, so connections can send it at the same time
+         */
+        ByteBuffer body() {
+            return heap != null ? ByteBuffer.wrap(heap) : direct.duplicate();
+        }
+    }
+
+    public ContentCache(long budget, long maxFile, boolean offHeap, boolean watch) {
+        this.budget = budget;
+        this.maxFile = maxFile;
+        this.offHeap = offHeap;
+        this.watch = watch;
+        if (watch) {
+            watcher = FileWatcher.shared();
+            if (watcher != null) watcher.listen(this);
+            else this.watch = false; //No watcher available, fall back to checking mtime
+        }
+    }
+
+    /**
+     * Sets up the shared cache from the startup options. --cache-size=0 turns it off.
+     */
+    public static void configure(ServerOptions options) {
+        long size = options.getInt("cache-size", 64 << 20);
+        if (size <= 0) {
+            shared = null;
+            return;
+        }
+        shared = new ContentCache(size, options.getInt("cache-max-file", 1 << 20), options.getBoolean("cache-offheap", false),
+                !options.get("cache-revalidate", "watch").equals("mtime"));
+    }
+
+    /**
+     * Looks up a file without loading it on a miss
+     * @return the entry, or null if the file is not cached or has changed
+     */
+    public Entry peek(File file) {
+        Path key = key(file);
+        Entry e;
+        synchronized (this) {
+            e = entries.get(key);
+        }
+        if (e != null && !watch && (file.lastModified() != e.lastModified || file.length() != e.length)) {
+            remove(key, e);
+            e = null;
+        }
+        if (e != null) hits.increment();
+        return e;
+    }
+
+    /**
+     * Looks up a file and loads it into the cache on a miss. The caller has already checked that the file exists
+     * and is readable.
+     * @return the entry, or null if the file is too large to cache or could not be read
+     */
+    public Entry get(File file) {
+        Entry e = peek(file);
+        if (e != null) return e;
+        misses.increment();
+
+        long length = file.length();
+        if (length > maxFile || length > budget) return null;
+
+        Path key = key(file);
+        long seen = changes.get();
+        try {
+            if (watch && !watcher.watch(key.getParent())) return null; //Watch before reading so a change during the read is not missed
+            long lastModified = file.lastModified();
+            byte[] data = Files.readAllBytes(key);
+            if (file.lastModified() != lastModified || data.length > maxFile || data.length > budget) return null; //Changed while it was being read, or grew too large
+            length = data.length; //The headers must describe the body actually read
+            ByteBuffer direct = null;
+            if (offHeap) {
+                direct = ByteBuffer.allocateDirect(data.length);
+                direct.put(data).flip();
+                data = null;
+            }
+            e = new Entry(new Response(file).getEntityHeaders(length, lastModified), lastModified, data, direct);
+        } catch (IOException ex) {
+            return null;
+        }
+
+        synchronized (this) {
+            if (changes.get() != seen) return e; //Something changed while it was read, serve it once but don't keep it
+            Entry old = entries.put(key, e);
+            if (old != null) bytes -= old.length;
+            bytes += e.length;
+            Iterator<Entry> it = entries.values().iterator();
+            while (bytes > budget && it.hasNext()) { //Evict least recently used until back under budget
+                Entry eldest = it.next();
+                if (eldest == e) continue;
+                it.remove();
+                bytes -= eldest.length;
+                evictions.increment();
+            }
+        }
+        return e;
+    }
+
+    /**
+     * Drops a file from the cache, for when the server changes it itself
+     */
+    public void invalidate(File file) {
+        invalidate(key(file));
+    }
+
+    private void invalidate(Path key) {
+        synchronized (this) {
+            changes.incrementAndGet();
+            Entry e = entries.remove(key);
+            if (e != null) bytes -= e.length;
+        }
+    }
+
+    private synchronized void remove(Path key, Entry e) {
+        if (entries.get(key) == e) {
+            entries.remove(key);
+            bytes -= e.length;
+        }
+    }
+
+    private static Path key(File file) {
+        return file.toPath().toAbsolutePath().normalize();
+    }
+
+    /**
+     * Drops the entry of a file that changed on disk
+     */
+    public void changed(Path path, WatchEvent.Kind<?> kind) {
+        invalidate(path);
+    }
+
+    public synchronized void overflowed() {
+        changes.incrementAndGet();
+        entries.clear();
+        bytes = 0;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return body bytes currently held
+     */
+    public synchronized long size() {
+        return bytes;
+    }
+}
@@ -0,0 +1,165 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Maps request targets to files under the document root. A target is percent-decoded, stripped of its query,
+ * normalized and checked to stay inside the root, with symbolic links followed, so neither "../" nor a link can
+ * reach files outside it. The result is cached by the decoded path, so a hot URI resolves with one hash lookup
+ * and no syscalls whatever query it carries, and the least recently used path is dropped once the cache is full.
+ * The shared FileWatcher, watching the directories of resolved files, drops cached targets when something in them
+ * is created or deleted, since a new or replaced link can change where a target leads.
+ */
+public class DocRoot implements FileWatcher.Listener {
+
+    static DocRoot shared; // Root used by SocketHandler, set up by configure
+
+    private final Path root; // Absolute, normalized
+    private final Path realRoot; // With links resolved, null if the root doesn't exist
+    private final int maxEntries;
+    private final LinkedHashMap<String, Target> targets; // By decoded path, access ordered for LRU, guarded by itself
+    private FileWatcher watcher; // Null if changes can't be seen, nothing is cached then
+    private AtomicLong changes = new AtomicLong(); // Bumped on every invalidation, see resolve
+
+    /**
+     * A resolved request target
+     */
+    static class Target {
+        final String name; // Decoded path from the root, starting with /
+        final File file;
+        final Path path; // Absolute, normalized
+        final String mime; // From Response.getMimeType
+        final boolean cgi; // Runs as a script on POST
+
+        Target(String name, Path path) {
+            this.name = name;
+            this.path = path;
+            this.file = path.toFile();
+            this.mime = Response.getMimeType(name);
+            this.cgi = name.endsWith(".cgi");
+        }
+    }
+
+    public DocRoot(Path root, int maxEntries) {
+        this.root = root.toAbsolutePath().normalize();
+        Path real;
+        try {
+            real = this.root.toRealPath();
+        } catch (IOException e) {
+            real = null;
+        }
+        this.realRoot = real;
+        this.maxEntries = maxEntries;
+        this.targets = new LinkedHashMap<String, Target>(64, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<String, Target> eldest) {
+                return size() > DocRoot.this.maxEntries;
+            }
+        };
+        watcher = FileWatcher.shared();
+        if (watcher != null) watcher.listen(this);
+    }
+
+    /**
+     * Reads --doc-root (default the working directory) and --path-cache-size
+     */
+    public static void configure(ServerOptions options) {
+        shared = new DocRoot(Paths.get(options.get("doc-root", ".")), options.getInt("path-cache-size", 10000));
+    }
+
+    /**
+     * Resolves a request target to a file under the root
+     * @param raw target as it appeared in the request line
+     * @return the target, or null if it is malformed or leads outside the root
+     */
+    public Target resolve(String raw) {
+        String name = decode(raw);
+        if (name == null) return null;
+        Target t;
+        synchronized (targets) {
+            t = targets.get(name);
+        }
+        if (t != null) return t;
+
+        Path path = root.resolve(name.substring(1)).normalize();
+        if (!path.startsWith(root)) return null; //../ past the root
+        long seen = changes.get();
+        boolean watching = watcher != null && watcher.watch(path.getParent());
+        try {
+            if (realRoot == null || !path.toRealPath().startsWith(realRoot)) return null; //Link out of the root
+        } catch (IOException e) {
+            //Doesn't exist (yet), nothing to follow
+        }
+        t = new Target("/" + root.relativize(path).toString().replace(File.separatorChar, '/'), path);
+        if (!watching) return t;
+
+        synchronized (targets) {
+            if (changes.get() == seen) targets.put(name, t); //Unless something changed while it was resolved
+        }
+        return t;
+    }
+
+    /**
+     * Drops the query and fragment and decodes %XX escapes as UTF-8
+     * @return the decoded path, or null if it doesn't start with / or has a bad or NUL escape
+     */
+    static String decode(String raw) {
+        int end = raw.length();
+        for (int i = 0; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            if (c == '?' || c == '#') {
+                end = i;
+                break;
+            }
+        }
+        if (end == 0 || raw.charAt(0) != '/') return null;
+        if (raw.indexOf('%') < 0) return raw.substring(0, end);
+
+        byte[] bytes = new byte[end];
+        int n = 0;
+        for (int i = 0; i < end; i++) {
+            char c = raw.charAt(i);
+            if (c == '%') {
+                if (i + 2 >= end) return null;
+                int hi = Character.digit(raw.charAt(i + 1), 16);
+                int lo = Character.digit(raw.charAt(i + 2), 16);
+                if (hi < 0 || lo < 0 || (hi == 0 && lo == 0)) return null;
+                bytes[n++] = (byte) (hi << 4 | lo);
+                i += 2;
+            } else {
+                bytes[n++] = (byte) c;
+            }
+        }
+        return new String(bytes, 0, n, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the number of cached targets
+     */
+    public int size() {
+        synchronized (targets) {
+            return targets.size();
+        }
+    }
+
+    /**
+     * Drops targets at or below a path that was created or deleted
+     */
+    public void changed(Path path, WatchEvent.Kind<?> kind) {
+        if (kind == StandardWatchEventKinds.ENTRY_MODIFY) return; //Writes to a file don't move it
+        synchronized (targets) {
+            changes.incrementAndGet();
+            targets.values().removeIf(t -> t.path.startsWith(path)); //A renamed directory takes everything in it along
+        }
+    }
+
+    public void overflowed() {
+        synchronized (targets) {
+            changes.incrementAndGet();
+            targets.clear();
+        }
+    }
+}
@@ -0,0 +1,243 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared cache of what the server needs to know about a file before sending it: whether it exists and is
+ * readable, its length, modification time and ETag. Lookups are a hash map get, so a conditional request for an
+ * unchanged file is answered with 304 without a single stat. Only files that exist are kept, so requests for
+ * random missing paths can't push out the hot entries, and the least recently used entry goes once the cache
+ * is full. The shared FileWatcher, watching each looked
+ * up file's directory, drops entries as soon as the file changes; where there is no watcher entries are only trusted for
+ * --metadata-ttl milliseconds.
+ *
+ * Also holds the per path Cache-Control policies, which decide the Cache-Control and Expires headers of static
+ * responses.
+ */
+public class FileMetadata implements FileWatcher.Listener {
+
+    static FileMetadata shared; // Cache used by SocketHandler, null when turned off
+
+    static final int OFF = 0;
+    static final int WEAK = 1;
+    static final int STRONG = 2;
+
+    static int etags = STRONG; // Kind of ETag sent, --etag
+    private static Policy[] policies = new Policy[0]; // Longest prefix first
+
+    private final LinkedHashMap<Path, Info> infos; // Access ordered for LRU, guarded by itself
+    private int maxEntries;
+    private long ttl; // Milliseconds an entry is trusted without a watcher, 0 with one
+    private FileWatcher watcher;
+    private AtomicLong changes = new AtomicLong(); // Bumped on every invalidation, see get
+
+    /**
+     * What a stat of the file found, plus the ETag for that version of it
+     */
+    static class Info {
+        final boolean exists;
+        final boolean readable; // Readable and not a directory
+        final long length;
+        final long lastModified;
+        final String etag; // null when ETags are off
+        final long checked; // When the file was looked at
+
+        Info(File file) {
+            checked = System.currentTimeMillis();
+            exists = file.exists();
+            readable = exists && file.canRead() && !file.isDirectory();
+            length = file.length();
+            lastModified = file.lastModified();
+            etag = exists ? etag(lastModified, length) : null;
+        }
+    }
+
+    /**
+     * Cache-Control value for the targets starting with a prefix
+     */
+    static class Policy {
+        final String prefix;
+        final String cacheControl;
+        final long maxAge; // Seconds, -1 when the value has no max-age
+        final boolean noCache; // no-cache or no-store, sent with an Expires in the past
+
+        Policy(String prefix, String cacheControl) {
+            this.prefix = prefix;
+            this.cacheControl = cacheControl;
+            long age = -1;
+            for (String directive : cacheControl.split(",")) {
+                directive = directive.trim();
+                if (directive.startsWith("max-age=")) {
+                    try {
+                        age = Long.parseLong(directive.substring(8));
+                    } catch (NumberFormatException e) {
+
+                    }
+                }
+            }
+            this.maxAge = age;
+            this.noCache = cacheControl.contains("no-cache") || cacheControl.contains("no-store");
+        }
+    }
+
+    public FileMetadata(int maxEntries, long ttl) {
+        this.maxEntries = maxEntries;
+        this.ttl = ttl;
+        this.infos = new LinkedHashMap<Path, Info>(64, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<Path, Info> eldest) {
+                return size() > FileMetadata.this.maxEntries;
+            }
+        };
+        watcher = FileWatcher.shared();
+        if (watcher != null) { //Otherwise entries expire after the ttl instead
+            this.ttl = 0;
+            watcher.listen(this);
+        }
+    }
+
+    /**
+     * Reads --etag=strong|weak|off, --cache-control, --metadata-cache-size and --metadata-ttl. --metadata-cache=off
+     * turns the cache off, every lookup is then a stat. --cache-control takes PREFIX=VALUE rules separated by |,
+     * e.g. "/images/=public, max-age=86400|/=no-cache".
+     */
+    public static void configure(ServerOptions options) {
+        String kind = options.get("etag", "strong");
+        etags = kind.equals("off") ? OFF : kind.equals("weak") ? WEAK : STRONG;
+
+        List<Policy> rules = new ArrayList<Policy>();
+        String spec = options.get("cache-control", null);
+        if (spec != null) {
+            for (String rule : spec.split("\\|")) {
+                int eq = rule.indexOf('=');
+                if (eq > 0) rules.add(new Policy(rule.substring(0, eq).trim(), rule.substring(eq + 1).trim()));
+            }
+        }
+        rules.sort((a, b) -> b.prefix.length() - a.prefix.length());
+        policies = rules.toArray(new Policy[0]);
+
+        shared = options.get("metadata-cache", "on").equals("off") ? null
+                : new FileMetadata(options.getInt("metadata-cache-size", 10000), options.getInt("metadata-ttl", 1000));
+    }
+
+    /**
+     * Looks a file up in the shared cache, or stats it when the cache is off
+     */
+    static Info lookup(File file) {
+        return shared != null ? shared.get(file) : new Info(file);
+    }
+
+    /**
+     * @return the cached metadata of a file, looking at the file only when there is no current entry
+     */
+    public Info get(File file) {
+        Path key = file.toPath().toAbsolutePath().normalize();
+        Info info;
+        synchronized (infos) {
+            info = infos.get(key);
+        }
+        if (info != null && (ttl == 0 || System.currentTimeMillis() - info.checked < ttl)) return info;
+
+        long seen = changes.get();
+        if (watcher != null && !watcher.watch(key.getParent())) return new Info(file); //Can't see changes, don't cache
+        info = new Info(file); //Directory is watched first so a change after the stat is not missed
+        if (!info.exists) return info; //Any path can be asked for, only real files are worth the room
+        synchronized (infos) {
+            if (changes.get() == seen) infos.put(key, info); //Unless something changed during the stat
+        }
+        return info;
+    }
+
+    /**
+     * Drops a file's entry, for when the server changes it itself
+     */
+    public void invalidate(File file) {
+        invalidate(file.toPath().toAbsolutePath().normalize());
+    }
+
+    private void invalidate(Path key) {
+        synchronized (infos) {
+            changes.incrementAndGet();
+            infos.remove(key);
+        }
+    }
+
+    /**
+     * @return the number of files with an entry
+     */
+    public int size() {
+        synchronized (infos) {
+            return infos.size();
+        }
+    }
+
+    /**
+     * Makes the ETag of one version of a file from its modification time and length, which is what the server
+     * can compare without reading the file
+     * @return the quoted tag, W/ prefixed when weak, or null when ETags are off
+     */
+    static String etag(long lastModified, long length) {
+        if (etags == OFF) return null;
+        String tag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + "\"";
+        return etags == WEAK ? "W/" + tag : tag;
+    }
+
+    /**
+     * @return the tag of a compressed variant, which has to differ from the identity body's
+     */
+    static String etag(String etag, String encoding) {
+        if (etag == null || encoding == null) return etag;
+        return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+    }
+
+    /**
+     * Compares an If-None-Match header with the current tag, weakly as RFC 9110 asks for GET and HEAD. Tags of
+     * compressed variants match the version they were made from.
+     * @return the client's tag that matched, the current tag for *, or null if nothing did
+     */
+    static String match(String ifNoneMatch, String etag) {
+        if (etag == null) return null;
+        String current = opaque(etag);
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.equals("*")) return etag;
+            String candidate = opaque(tag);
+            if (candidate.equals(current) || (candidate.startsWith(current.substring(0, current.length() - 1) + "-")
+                    && (candidate.endsWith("-gzip\"") || candidate.endsWith("-deflate\"")))) {
+                return tag;
+            }
+        }
+        return null;
+    }
+
+    private static String opaque(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    /**
+     * @return the Cache-Control policy with the longest prefix of the target, null if none applies
+     */
+    static Policy policy(String target) {
+        if (target == null) return null;
+        for (Policy p : policies) {
+            if (target.startsWith(p.prefix)) return p;
+        }
+        return null;
+    }
+
+    /**
+     * Drops the entry of a file that changed on disk
+     */
+    public void changed(Path path, WatchEvent.Kind<?> kind) {
+        invalidate(path);
+    }
+
+    public void overflowed() {
+        synchronized (infos) {
+            changes.incrementAndGet();
+            infos.clear();
+        }
+    }
+}
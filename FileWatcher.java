@@ -0,0 +1,116 @@
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The one WatchService the caches that must notice changes on disk share: ContentCache, FileMetadata and DocRoot.
+ * A directory is registered the first time any of them looks at a file in it, and every event in it goes to all of
+ * them, so there is one kernel watch per directory and one thread however many caches are turned on.
+ */
+public class FileWatcher {
+
+    private static FileWatcher shared; // Made by the first cache that asks for it
+    private static boolean unavailable; // The platform has no WatchService
+
+    private final WatchService service;
+    private final Set<Path> watched = ConcurrentHashMap.newKeySet(); // Directories already registered
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    /**
+     * A cache told about changes. Both methods run on the watcher thread, so they must not block.
+     */
+    interface Listener {
+        /**
+         * @param path file or directory created, modified or deleted in a watched directory
+         * @param kind ENTRY_CREATE, ENTRY_MODIFY or ENTRY_DELETE
+         */
+        void changed(Path path, WatchEvent.Kind<?> kind);
+
+        /**
+         * Events were lost, so anything may have changed
+         */
+        void overflowed();
+    }
+
+    private FileWatcher(WatchService service) {
+        this.service = service;
+        Thread t = new Thread(this::run, "file-watcher");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * @return the watcher every cache shares, or null if changes can't be watched here
+     */
+    static synchronized FileWatcher shared() {
+        if (shared == null && !unavailable) {
+            try {
+                shared = new FileWatcher(FileSystems.getDefault().newWatchService());
+            } catch (IOException | UnsupportedOperationException e) {
+                unavailable = true;
+            }
+        }
+        return shared;
+    }
+
+    /**
+     * Adds a cache to be told about every change from now on
+     */
+    void listen(Listener l) {
+        listeners.add(l);
+    }
+
+    /**
+     * Starts watching a directory, unless it already is
+     * @return false if it can't be watched, e.g. because it doesn't exist
+     */
+    boolean watch(Path dir) {
+        if (dir == null) return false;
+        if (watched.contains(dir)) return true;
+        synchronized (watched) {
+            try {
+                if (!watched.contains(dir)) {
+                    dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+                            StandardWatchEventKinds.ENTRY_DELETE);
+                    watched.add(dir);
+                }
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Runs on the watcher thread, passing every event on to every listener
+     */
+    private void run() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = service.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            Path dir = (Path) key.watchable();
+            for (WatchEvent<?> event : key.pollEvents()) {
+                for (Listener l : listeners) {
+                    try {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) { //Lost track of changes, start over
+                            l.overflowed();
+                        } else {
+                            l.changed(dir.resolve((Path) event.context()), event.kind());
+                        }
+                    } catch (RuntimeException e) {
+                        //One cache failing must not keep the others from hearing about changes
+                    }
+                }
+            }
+            if (!key.reset()) { //Directory is gone
+                watched.remove(dir);
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+import java.io.*;
+import java.net.*;
+import java.nio.channels.IllegalBlockingModeException;
+import java.util.concurrent.*;
+
+/**
+ * Closes client sockets without making the worker wait. The output side is shut down right away so the client sees
+ * the end of the response, then after a short linger any unread request bytes are drained and the socket is closed
+ * on a background thread. Draining first keeps the close from turning into a reset that could cut off the response.
+ */
+public class GracefulClose {
+
+    static final long LINGER = 100; // Milliseconds to give the client to read the response before the socket is closed
+
+    private static ScheduledExecutorService closer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "socket-closer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * Half closes the socket now and schedules the full close. Safe to call more than once.
+     * @param s socket whose response has already been flushed
+     */
+    public static void close(Socket s) {
+        if (s.isClosed() || s.isOutputShutdown()) return;
+        try {
+            s.shutdownOutput(); //Sends FIN after the response
+        } catch (IOException e) {
+            closeNow(s);
+            return;
+        }
+        closer.schedule(() -> drainAndClose(s), LINGER, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Throws away whatever the client sent that was never read, then closes the socket
+     */
+    static void drainAndClose(Socket s) {
+        try {
+            InputStream in = s.getInputStream();
+            int n;
+            while ((n = in.available()) > 0) {
+                in.skip(n);
+            }
+        } catch (IOException | IllegalBlockingModeException e) { //Non-blocking channels from the selector front end can't be drained this way
+
+        }
+        closeNow(s);
+    }
+
+    static void closeNow(Socket s) {
+        try {
+            s.close();
+        } catch (IOException e) {
+
+        }
+    }
+}
@@ -5,6 +5,7 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
 import java.util.concurrent.*; //import for thread pool:
 
 
@@ -15,33 +16,60 @@ public class HTTP3Server {
     
     public static void main(String[] args) {
         port = Integer.parseInt(args[0]); //Takes port number from input
+        ServerOptions options = new ServerOptions(args, 1); //Optional flags after the port
+        SocketHandler.configure(options);
+        Http2Connection.configure(options);
+        TimerWheel.configure(options);
+        BufferPool.configure(options);
+        RequestParser.configure(options);
+        ContentCache.configure(options);
+        FileMetadata.configure(options);
+        DocRoot.configure(options);
+        MappedFiles.configure(options);
+        Compression.configure(options);
+        CgiPool.configure(options);
+        CgiCache.configure(options);
+        Metrics.configure(options);
+        AccessLog.configure(options);
+        Listener.configure(options);
 
-        try {
-            serv = new ServerSocket(port); //Creates server
-        } catch(IOException e) {
-            //Do something
+        int loops = options.getInt("loops", Runtime.getRuntime().availableProcessors());
+        boolean nio = options.get("mode", "blocking").equals("nio"); //Selector front end, threads are only used once a full request has arrived
+        for (int i = Listener.acceptors - 1; i >= 0; i--) { //Main thread ends up running the first acceptor
+            AdmissionController tpool = Workers.create(options, Listener.acceptors); //each acceptor feeds its own worker group
+            if (Metrics.shared != null) Metrics.shared.observe(tpool);
+            try {
+                ServerSocketChannel ch = Listener.open(port); //Creates server, backed by a channel so responses can use transferTo
+                serv = ch.socket();
+                Runnable acceptor = nio ? new SelectorServer(ch, Math.max(1, loops / Listener.acceptors), tpool)::start
+                        : () -> accept(ch.socket(), tpool);
+                if (i == 0) {
+                    acceptor.run();
+                } else {
+                    new Thread(acceptor, "acceptor-" + i).start();
+                }
+            } catch(IOException e) {
+                e.printStackTrace();
+                return;
+            }
         }
-        ExecutorService tpool = new ThreadPoolExecutor(5,50,1000,TimeUnit.MILLISECONDS, new SynchronousQueue<>()); //thread pool object
+    }
+
+    /**
+     * Accepts connections on one listening socket and hands them to that acceptor's worker group
+     */
+    static void accept(ServerSocket serv, AdmissionController tpool) {
         while(true) {
             try {
                 Socket s = serv.accept(); //connects with a client
+                Listener.accepted(s);
                 try{
                     SocketHandler handler = new SocketHandler(s); //create thread for the client
                     tpool.execute(handler); //execute thread, when thread is over, tpool will autimatically remove it
-                } catch (RejectedExecutionException e){ //when threadpool reaches maximum of 50 while a new client is trying to make a connection
-                     try{ //sends 503 error
-                        BufferedWriter resp = new BufferedWriter(new OutputStreamWriter(s.getOutputStream()));
-                        resp.write(Response.getErrorMessage(503));
-                        resp.flush();
-                        Thread.sleep(250);
-                        resp.close();
-                        s.close();
-                    } catch (IOException e2) {
-                        s.close();
-                    }
-                    catch (InterruptedException e3) {
-                        s.close();
-                    }
+                    if (Metrics.shared != null) Metrics.shared.accepted();
+                } catch (RejectedExecutionException e){ //when the worker group's queue is full while a new client is trying to make a connection
+                    if (Metrics.shared != null) Metrics.shared.rejected();
+                    tpool.reject(s, "queue full"); //sends 503 on another thread so accept is never held up
                 }
             } catch(IOException e) {
 
@@ -0,0 +1,389 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * HPACK header compression for HTTP/2 (RFC 7541). The static table is shared by every connection; each connection
+ * has a Decoder for the header blocks it receives and an Encoder for the ones it sends, each with its own dynamic
+ * table. Received strings may be Huffman coded, and sent strings are Huffman coded whenever that makes them
+ * shorter. The encoder indexes response headers that repeat from response to response (content-type,
+ * cache-control, ...) so after the first response they cost a byte or two, while values that change every time,
+ * like lengths and dates, are sent without indexing so they don't push the useful entries out of the table.
+ */
+public class Hpack {
+
+    static final int DEFAULT_TABLE_SIZE = 4096; // SETTINGS_HEADER_TABLE_SIZE until the peer says otherwise
+
+    static final String[][] STATIC_TABLE = {
+            {":authority", ""}, {":method", "GET"}, {":method", "POST"}, {":path", "/"}, {":path", "/index.html"},
+            {":scheme", "http"}, {":scheme", "https"}, {":status", "200"}, {":status", "204"}, {":status", "206"},
+            {":status", "304"}, {":status", "400"}, {":status", "404"}, {":status", "500"}, {"accept-charset", ""},
+            {"accept-encoding", "gzip, deflate"}, {"accept-language", ""}, {"accept-ranges", ""}, {"accept", ""},
+            {"access-control-allow-origin", ""}, {"age", ""}, {"allow", ""}, {"authorization", ""},
+            {"cache-control", ""}, {"content-disposition", ""}, {"content-encoding", ""}, {"content-language", ""},
+            {"content-length", ""}, {"content-location", ""}, {"content-range", ""}, {"content-type", ""},
+            {"cookie", ""}, {"date", ""}, {"etag", ""}, {"expect", ""}, {"expires", ""}, {"from", ""}, {"host", ""},
+            {"if-match", ""}, {"if-modified-since", ""}, {"if-none-match", ""}, {"if-range", ""},
+            {"if-unmodified-since", ""}, {"last-modified", ""}, {"link", ""}, {"location", ""}, {"max-forwards", ""},
+            {"proxy-authenticate", ""}, {"proxy-authorization", ""}, {"range", ""}, {"referer", ""}, {"refresh", ""},
+            {"retry-after", ""}, {"server", ""}, {"set-cookie", ""}, {"strict-transport-security", ""},
+            {"transfer-encoding", ""}, {"user-agent", ""}, {"vary", ""}, {"via", ""}, {"www-authenticate", ""}
+    }; // Entry i is index i + 1
+
+    private static final Map<String, Integer> STATIC_NAMES = new HashMap<String, Integer>(); // Lowest index with the name
+    private static final Map<String, Integer> STATIC_FIELDS = new HashMap<String, Integer>(); // "name\0value" to index
+
+    // Headers whose values rarely repeat, never worth a dynamic table entry
+    private static final Set<String> UNINDEXED = new HashSet<String>(Arrays.asList(
+            "content-length", "content-range", "date", "etag", "expires", "last-modified", "set-cookie", "location"));
+
+    // Huffman code of each symbol, right aligned, and its length in bits. Symbol 256 is EOS.
+    private static final int[] CODES = {
+            0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+            0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+            0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+            0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+            0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+            0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+            0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+            0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+            0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+            0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+            0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+            0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+            0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+            0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+            0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+            0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+            0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+            0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+            0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+            0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+            0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+            0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+            0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+            0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+            0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+            0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+            0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+            0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+            0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+            0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+            0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+            0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+            0x3fffffff
+    };
+    private static final byte[] LENGTHS = {
+            13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+            28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+            6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+            5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+            13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+            7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+            15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+            6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+            20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+            24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+            22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+            21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+            26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+            19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+            20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+            26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+            30
+    };
+
+    // Huffman decoding tree: node n has children TREE[2n] (bit 0) and TREE[2n+1] (bit 1), a negative child is
+    // the leaf of symbol -child - 1, and 0 means no such code
+    private static final int[] TREE = new int[2 * 256];
+
+    static {
+        for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+            STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+            STATIC_FIELDS.put(STATIC_TABLE[i][0] + '\0' + STATIC_TABLE[i][1], i + 1);
+        }
+        int nodes = 1;
+        for (int sym = 0; sym < CODES.length; sym++) {
+            int node = 0;
+            for (int bit = LENGTHS[sym] - 1; bit > 0; bit--) {
+                int slot = 2 * node + (CODES[sym] >>> bit & 1);
+                if (TREE[slot] == 0) TREE[slot] = nodes++;
+                node = TREE[slot];
+            }
+            TREE[2 * node + (CODES[sym] & 1)] = -sym - 1;
+        }
+    }
+
+    /**
+     * One dynamic table, newest entry first as HPACK numbers them
+     */
+    static class Table {
+        private final ArrayDeque<String[]> entries = new ArrayDeque<String[]>();
+        private int size; // Sum of the entries' sizes as RFC 7541 counts them
+        private int maxSize;
+
+        Table(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        static int size(String name, String value) {
+            return name.length() + value.length() + 32;
+        }
+
+        void add(String name, String value) {
+            int s = size(name, value);
+            evict(maxSize - s);
+            if (s > maxSize) return; //Too big for the table, which is now empty
+            entries.addFirst(new String[] {name, value});
+            size += s;
+        }
+
+        void resize(int maxSize) {
+            this.maxSize = maxSize;
+            evict(maxSize);
+        }
+
+        private void evict(int limit) {
+            while (size > Math.max(0, limit) && !entries.isEmpty()) {
+                String[] e = entries.removeLast();
+                size -= size(e[0], e[1]);
+            }
+        }
+
+        int length() {
+            return entries.size();
+        }
+
+        /**
+         * @param index 0 for the newest entry
+         */
+        String[] get(int index) {
+            if (index < entries.size() / 2) {
+                Iterator<String[]> it = entries.iterator();
+                for (int i = 0; i < index; i++) it.next();
+                return it.next();
+            }
+            Iterator<String[]> it = entries.descendingIterator();
+            for (int i = entries.size() - 1; i > index; i--) it.next();
+            return it.next();
+        }
+    }
+
+    /**
+     * Decodes the header blocks of one connection
+     */
+    static class Decoder {
+        private final Table table;
+        private final int limit; // Largest table size the peer may ask for, what we advertised
+
+        Decoder(int limit) {
+            this.table = new Table(limit);
+            this.limit = limit;
+        }
+
+        /**
+         * Decodes a complete header block, updating the dynamic table as it goes
+         * @param headers list the name and value pairs are added to, in order
+         * @param maxListSize most bytes of headers, as HPACK counts them, to accept
+         * @throws IOException if the block is malformed, which breaks the connection's compression state
+         */
+        void decode(byte[] block, int off, int len, List<String[]> headers, int maxListSize) throws IOException {
+            int[] pos = {off};
+            int end = off + len;
+            int listSize = 0;
+            boolean fieldSeen = false;
+            while (pos[0] < end) {
+                int b = block[pos[0]] & 0xff;
+                String name;
+                String value;
+                if ((b & 0x80) != 0) { //Indexed field
+                    String[] field = field(readInt(block, pos, end, 7));
+                    name = field[0];
+                    value = field[1];
+                } else if ((b & 0x20) != 0 && (b & 0x40) == 0) { //Dynamic table size update, only at the start
+                    int size = readInt(block, pos, end, 5);
+                    if (fieldSeen || size > limit) throw new IOException("Bad table size update");
+                    table.resize(size);
+                    continue;
+                } else {
+                    boolean indexing = (b & 0x40) != 0;
+                    int index = readInt(block, pos, end, indexing ? 6 : 4);
+                    name = index == 0 ? readString(block, pos, end) : field(index)[0];
+                    value = readString(block, pos, end);
+                    if (indexing) table.add(name, value);
+                }
+                fieldSeen = true;
+                listSize += Table.size(name, value);
+                if (listSize > maxListSize) throw new IOException("Header list too large");
+                headers.add(new String[] {name, value});
+            }
+        }
+
+        private String[] field(int index) throws IOException {
+            if (index > 0 && index <= STATIC_TABLE.length) return STATIC_TABLE[index - 1];
+            int dynamic = index - STATIC_TABLE.length - 1;
+            if (index <= 0 || dynamic >= table.length()) throw new IOException("Bad header index " + index);
+            return table.get(dynamic);
+        }
+    }
+
+    /**
+     * Encodes the header blocks of one connection. Blocks must be sent in the order they are encoded.
+     */
+    static class Encoder {
+        private final Table table = new Table(DEFAULT_TABLE_SIZE);
+        private int pendingSize = -1; // Table size to announce at the start of the next block
+
+        /**
+         * Follows the peer's SETTINGS_HEADER_TABLE_SIZE. The table never grows past the default size.
+         */
+        void setMaxTableSize(int size) {
+            pendingSize = Math.min(size, DEFAULT_TABLE_SIZE);
+            table.resize(pendingSize);
+        }
+
+        /**
+         * Adds one header block to out
+         * @param headers name and value pairs, names in lower case
+         */
+        void encode(List<String[]> headers, ByteArrayOutputStream out) {
+            if (pendingSize >= 0) {
+                writeInt(out, 0x20, 5, pendingSize);
+                pendingSize = -1;
+            }
+            for (String[] h : headers) {
+                String name = h[0];
+                String value = h[1];
+                Integer exact = STATIC_FIELDS.get(name + '\0' + value);
+                int dynamic = -1;
+                int dynamicName = -1;
+                for (int i = 0; exact == null && i < table.length(); i++) {
+                    String[] e = table.get(i);
+                    if (!e[0].equals(name)) continue;
+                    if (e[1].equals(value)) {
+                        dynamic = i;
+                        break;
+                    }
+                    if (dynamicName < 0) dynamicName = i;
+                }
+                if (exact != null) {
+                    writeInt(out, 0x80, 7, exact);
+                } else if (dynamic >= 0) {
+                    writeInt(out, 0x80, 7, STATIC_TABLE.length + 1 + dynamic);
+                } else {
+                    Integer staticName = STATIC_NAMES.get(name);
+                    int nameIndex = staticName != null ? staticName : dynamicName >= 0 ? STATIC_TABLE.length + 1 + dynamicName : 0;
+                    boolean indexing = !UNINDEXED.contains(name);
+                    if (indexing) {
+                        writeInt(out, 0x40, 6, nameIndex);
+                    } else {
+                        writeInt(out, 0x00, 4, nameIndex);
+                    }
+                    if (nameIndex == 0) writeString(out, name);
+                    writeString(out, value);
+                    if (indexing) table.add(name, value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads an integer with an N bit prefix
+     */
+    static int readInt(byte[] b, int[] pos, int end, int prefix) throws IOException {
+        if (pos[0] >= end) throw new IOException("Truncated integer");
+        int mask = (1 << prefix) - 1;
+        int value = b[pos[0]++] & mask;
+        if (value < mask) return value;
+        for (int shift = 0; ; shift += 7) {
+            if (pos[0] >= end || shift > 21) throw new IOException("Bad integer");
+            int c = b[pos[0]++] & 0xff;
+            value += (c & 0x7f) << shift;
+            if ((c & 0x80) == 0) return value;
+        }
+    }
+
+    static void writeInt(ByteArrayOutputStream out, int flags, int prefix, int value) {
+        int mask = (1 << prefix) - 1;
+        if (value < mask) {
+            out.write(flags | value);
+            return;
+        }
+        out.write(flags | mask);
+        value -= mask;
+        while (value >= 0x80) {
+            out.write(value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    static String readString(byte[] b, int[] pos, int end) throws IOException {
+        if (pos[0] >= end) throw new IOException("Truncated string");
+        boolean huffman = (b[pos[0]] & 0x80) != 0;
+        int length = readInt(b, pos, end, 7);
+        if (length > end - pos[0]) throw new IOException("Truncated string");
+        int start = pos[0];
+        pos[0] += length;
+        return huffman ? huffmanDecode(b, start, length) : new String(b, start, length, "ISO-8859-1");
+    }
+
+    /**
+     * Writes a string, Huffman coded if that is shorter
+     */
+    static void writeString(ByteArrayOutputStream out, String s) {
+        long bits = 0;
+        for (int i = 0; i < s.length(); i++) {
+            bits += LENGTHS[s.charAt(i) & 0xff];
+        }
+        int coded = (int) ((bits + 7) / 8);
+        if (coded >= s.length()) {
+            writeInt(out, 0x00, 7, s.length());
+            for (int i = 0; i < s.length(); i++) {
+                out.write(s.charAt(i));
+            }
+            return;
+        }
+        writeInt(out, 0x80, 7, coded);
+        long acc = 0; // Pending bits, right aligned
+        int n = 0;
+        for (int i = 0; i < s.length(); i++) {
+            int sym = s.charAt(i) & 0xff;
+            acc = acc << LENGTHS[sym] | CODES[sym];
+            n += LENGTHS[sym];
+            while (n >= 8) {
+                n -= 8;
+                out.write((int) (acc >>> n));
+            }
+        }
+        if (n > 0) out.write((int) (acc << (8 - n) | 0xff >>> n)); //Pad with the start of EOS, all ones
+    }
+
+    static String huffmanDecode(byte[] b, int off, int len) throws IOException {
+        StringBuilder sb = new StringBuilder(len * 8 / 5);
+        int node = 0;
+        int depth = 0; // Bits read since the last symbol
+        boolean allOnes = true; // Those bits are all ones, as padding must be
+        for (int i = off; i < off + len; i++) {
+            int c = b[i] & 0xff;
+            for (int bit = 7; bit >= 0; bit--) {
+                int one = c >>> bit & 1;
+                int next = TREE[2 * node + one];
+                depth++;
+                allOnes &= one == 1;
+                if (next < 0) {
+                    if (next == -257) throw new IOException("EOS in Huffman string");
+                    sb.append((char) (-next - 1));
+                    node = 0;
+                    depth = 0;
+                    allOnes = true;
+                } else if (next == 0) {
+                    throw new IOException("Bad Huffman code");
+                } else {
+                    node = next;
+                }
+            }
+        }
+        if (depth > 7 || !allOnes) throw new IOException("Bad Huffman padding");
+        return sb.toString();
+    }
+}
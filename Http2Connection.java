@@ -0,0 +1,1061 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * HTTP/2 over cleartext TCP (h2c). A connection gets here either by starting with the HTTP/2 preface (prior
+ * knowledge) or with an HTTP/1.1 request carrying "Upgrade: h2c", which is answered as stream 1 after the 101.
+ * SocketHandler hands the socket over and this class owns it from then on.
+ *
+ * The connection's thread reads frames. Every stream whose request is complete runs as a task of its own in the
+ * connection's worker group, so a slow CGI script or a large file on one stream never holds up the others, and
+ * their frames interleave on the socket. Streams count against the group's admission limit and report their
+ * latency to it like any HTTP/1.1 connection; one that can't get a slot is refused with REFUSED_STREAM, which
+ * clients may retry. A stream's request is replayed as HTTP/1.1 through an ordinary SocketHandler over a StreamSocket, so
+ * GET, HEAD and POST behave exactly as they do over HTTP/1.1, and the response it writes is translated back into
+ * HEADERS and DATA frames as it is produced. Header blocks are compressed with HPACK, see Hpack.
+ *
+ * Flow control is per stream and per connection in the send direction: a stream's thread waits for window before
+ * each DATA frame. Received DATA is acknowledged right away, as request bodies are small and read into memory, until
+ * a body passes SocketHandler.MAX_BODY: it is then answered with 413 and its stream's window is not opened again.
+ * Every DATA frame counts against the windows we advertised, and a client that sends more than it was granted gets
+ * FLOW_CONTROL_ERROR, on the stream or, for the connection window, with GOAWAY.
+ */
+public class Http2Connection {
+
+    static boolean enabled = true; // Accept prior knowledge and Upgrade: h2c, off leaves HTTP/1.x alone
+    static int maxStreams = 100; // SETTINGS_MAX_CONCURRENT_STREAMS we advertise
+    static int window = 65535; // SETTINGS_INITIAL_WINDOW_SIZE we advertise
+    private static ExecutorService streams; // Runs streams of connections outside a worker group, made on first use
+
+    static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    static final int PREFACE_HEAD = 18; // Length of "PRI * HTTP/2.0\r\n\r\n", which RequestParser reads as a request head
+    static final int FRAME_SIZE = 16384; // Largest frame accepted, SETTINGS_MAX_FRAME_SIZE is left at its default
+    static final int MAX_HEADER_LIST = 65536; // Most header bytes, as HPACK counts them, in one request
+    static final int WINDOW_TIMEOUT = 30000; // Milliseconds a stream waits for the client to open its window
+
+    static final int DATA = 0, HEADERS = 1, PRIORITY = 2, RST_STREAM = 3, SETTINGS = 4, PUSH_PROMISE = 5, PING = 6,
+            GOAWAY = 7, WINDOW_UPDATE = 8, CONTINUATION = 9; // Frame types
+    static final int END_STREAM = 0x1, ACK = 0x1, END_HEADERS = 0x4, PADDED = 0x8, PRIORITY_FLAG = 0x20; // Flags
+    static final int NO_ERROR = 0, PROTOCOL_ERROR = 1, INTERNAL_ERROR = 2, FLOW_CONTROL_ERROR = 3,
+            STREAM_CLOSED = 5, FRAME_SIZE_ERROR = 6, REFUSED_STREAM = 7, CANCEL = 8, COMPRESSION_ERROR = 9; // Error codes
+
+    // Headers that only make sense for one HTTP/1.1 hop and are malformed in HTTP/2
+    private static final Set<String> CONNECTION_HEADERS = new HashSet<String>(Arrays.asList(
+            "connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade", "http2-settings"));
+
+    private final Socket s;
+    private final WriteDeadline deadline = new WriteDeadline();
+    private final AdmissionController admission = AdmissionController.current(); // Worker group the streams run in
+    private final DataInputStream in;
+    private final OutputStream out; // Frames are written under its lock, one whole frame at a time
+    private final byte[] upgraded; // HTTP/1.1 request answered as stream 1, null with prior knowledge
+    private final String settings; // HTTP2-Settings of the upgrade request
+    private final Hpack.Decoder decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+    private final Hpack.Encoder encoder = new Hpack.Encoder(); // Used under out's lock so blocks go out in encoding order
+    private final Map<Integer, Stream> active = new HashMap<Integer, Stream>(); // Open streams, guarded by this
+    private final byte[] frame = new byte[FRAME_SIZE]; // Payload of the frame being read
+    private final ByteArrayOutputStream block = new ByteArrayOutputStream(); // Header block being collected
+    private int blockStream; // Stream of the header block, 0 when no CONTINUATION is expected
+    private boolean blockEnd; // HEADERS frame of the block had END_STREAM
+    private int lastStreamId; // Highest stream the client opened
+    private int receiveWindow = 65535; // Connection window granted to the client and not used yet
+
+    // Send side state, guarded by this
+    private int sendWindow = 65535; // Connection flow control window
+    private int initialWindow = 65535; // Client's SETTINGS_INITIAL_WINDOW_SIZE
+    private volatile int frameSize = FRAME_SIZE; // Client's SETTINGS_MAX_FRAME_SIZE
+    private boolean goingAway; // No new streams are accepted
+    private boolean closed; // Nothing more can be sent
+
+    /**
+     * An error that ends the connection with GOAWAY
+     */
+    static class Http2Exception extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final int code;
+
+        Http2Exception(int code, String message) {
+            super(message);
+            this.code = code;
+        }
+    }
+
+    /**
+     * @param s the client socket, in blocking mode
+     * @param buffered bytes already read off the socket after the request head, read before anything else
+     * @param upgraded the request that asked for the upgrade, or null if the client started with the preface
+     * @param settings HTTP2-Settings header of the upgrade request
+     */
+    public Http2Connection(Socket s, byte[] buffered, byte[] upgraded, String settings) throws IOException {
+        this.s = s;
+        this.in = new DataInputStream(new BufferedInputStream(new SequenceInputStream(new ByteArrayInputStream(buffered),
+                s.getInputStream()), 2 * FRAME_SIZE));
+        this.out = new BufferedOutputStream(deadline.wrap(s.getOutputStream()), FRAME_SIZE + 64); //Room for a full DATA frame and its header
+        this.upgraded = upgraded;
+        this.settings = settings;
+    }
+
+    /**
+     * Reads --http2=on|off, --h2-max-streams and --h2-window
+     */
+    public static void configure(ServerOptions options) {
+        enabled = !options.get("http2", "on").equals("off");
+        maxStreams = Math.max(1, options.getInt("h2-max-streams", 100));
+        window = Math.max(65535, options.getInt("h2-window", 65535));
+    }
+
+    /**
+     * @return a pool of at most maxStreams threads, for connections not started by an AdmissionController
+     */
+    private static synchronized ExecutorService streams() {
+        if (streams == null) {
+            streams = new ThreadPoolExecutor(0, maxStreams, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), r -> {
+                Thread t = new Thread(r, "h2-stream");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        return streams;
+    }
+
+    /**
+     * @return true if the request head is the start of the HTTP/2 preface
+     */
+    static boolean isPreface(RequestParser parser) {
+        return "PRI * HTTP/2.0".equals(parser.requestLine()) && parser.headerCount() == 0 && parser.headEnd() == PREFACE_HEAD;
+    }
+
+    /**
+     * @param name header name in any case
+     * @return true for headers that only apply to one HTTP/1.1 connection
+     */
+    static boolean isConnectionHeader(String name) {
+        return CONNECTION_HEADERS.contains(name.toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Serves the connection until the client goes away, it sits idle for the keep-alive timeout, or it breaks the
+     * protocol. Closes the socket before returning.
+     */
+    public void serve() {
+        int error = NO_ERROR;
+        try {
+            s.setSoTimeout(SocketHandler.keepAliveTimeout);
+            writeSettings(); //Server preface, straight after the 101 when upgrading
+            if (settings != null) applySettings(Base64.getUrlDecoder().decode(settings.trim()), false);
+            byte[] preface = new byte[upgraded != null ? PREFACE.length : PREFACE.length - PREFACE_HEAD];
+            in.readFully(preface);
+            if (!Arrays.equals(preface, 0, preface.length, PREFACE, PREFACE.length - preface.length, PREFACE.length)) {
+                throw new Http2Exception(PROTOCOL_ERROR, "Bad connection preface");
+            }
+            if (upgraded != null) {
+                Stream st = new Stream(1, false);
+                st.request = upgraded;
+                lastStreamId = 1;
+                synchronized (this) {
+                    active.put(1, st);
+                }
+                st.dispatch();
+            }
+            readFrames();
+        } catch (Http2Exception e) {
+            error = e.code;
+        } catch (IllegalArgumentException e) {
+            error = PROTOCOL_ERROR; //HTTP2-Settings wasn't base64url
+        } catch (IOException e) {
+            synchronized (this) {
+                closed = true; //Socket is broken, nothing more can be sent
+            }
+        } finally {
+            close(error);
+        }
+    }
+
+    /**
+     * Reads frames until the client closes the connection, it idles out, or its open streams send nothing for
+     * longer than a stream may wait for window or for the client to take a write
+     */
+    private void readFrames() throws IOException {
+        byte[] header = new byte[9];
+        boolean first = true;
+        long seen = -1; // Bytes written at the last read timeout, -1 after a frame came in
+        long stalledSince = 0; // Since when nothing came in or went out
+        while (true) {
+            int b;
+            try {
+                b = in.read(); //Only the first byte of a frame may time out, nothing is lost
+            } catch (SocketTimeoutException e) {
+                synchronized (this) {
+                    if (active.isEmpty()) return;
+                }
+                long now = System.currentTimeMillis();
+                if (deadline.written() != seen) { //Still answering, the client is just waiting
+                    seen = deadline.written();
+                    stalledSince = now;
+                    continue;
+                }
+                if (now - stalledSince < Math.max(WINDOW_TIMEOUT, SocketHandler.writeTimeout)) continue;
+                return; //Streams are stuck, give up on them
+            }
+            seen = -1;
+            if (b < 0) return;
+            header[0] = (byte) b;
+            in.readFully(header, 1, 8);
+            int length = (header[0] & 0xff) << 16 | (header[1] & 0xff) << 8 | header[2] & 0xff;
+            int type = header[3] & 0xff;
+            int flags = header[4] & 0xff;
+            int id = ((header[5] & 0x7f) << 24) | (header[6] & 0xff) << 16 | (header[7] & 0xff) << 8 | header[8] & 0xff;
+            if (length > FRAME_SIZE) throw new Http2Exception(FRAME_SIZE_ERROR, "Frame too large");
+            in.readFully(frame, 0, length);
+            if (first && type != SETTINGS) throw new Http2Exception(PROTOCOL_ERROR, "Preface not followed by SETTINGS");
+            first = false;
+            if (blockStream != 0 && (type != CONTINUATION || id != blockStream)) {
+                throw new Http2Exception(PROTOCOL_ERROR, "Header block interrupted");
+            }
+
+            switch (type) {
+                case DATA:
+                    onData(id, flags, length);
+                    break;
+                case HEADERS:
+                    onHeaders(id, flags, length);
+                    break;
+                case CONTINUATION:
+                    if (blockStream == 0) throw new Http2Exception(PROTOCOL_ERROR, "Unexpected CONTINUATION");
+                    appendBlock(frame, 0, length);
+                    if ((flags & END_HEADERS) != 0) onHeaderBlock();
+                    break;
+                case PRIORITY:
+                    if (id == 0) throw new Http2Exception(PROTOCOL_ERROR, "PRIORITY on stream 0");
+                    break; //Streams are served as they come, priorities don't change that
+                case RST_STREAM:
+                    if (id == 0 || length != 4) throw new Http2Exception(PROTOCOL_ERROR, "Bad RST_STREAM");
+                    synchronized (this) {
+                        Stream st = active.get(id);
+                        if (st != null) {
+                            st.reset = true; //Its thread notices on its next write
+                            st.receiving = false;
+                            if (!st.dispatched) active.remove(id);
+                            notifyAll();
+                        }
+                    }
+                    break;
+                case SETTINGS:
+                    if (id != 0) throw new Http2Exception(PROTOCOL_ERROR, "SETTINGS on a stream");
+                    if ((flags & ACK) != 0) {
+                        if (length != 0) throw new Http2Exception(FRAME_SIZE_ERROR, "SETTINGS ACK with payload");
+                    } else {
+                        applySettings(Arrays.copyOf(frame, length), true);
+                    }
+                    break;
+                case PUSH_PROMISE:
+                    throw new Http2Exception(PROTOCOL_ERROR, "Clients can't push");
+                case PING:
+                    if (id != 0) throw new Http2Exception(PROTOCOL_ERROR, "PING on a stream");
+                    if (length != 8) throw new Http2Exception(FRAME_SIZE_ERROR, "Bad PING");
+                    if ((flags & ACK) == 0) writeFrame(PING, ACK, 0, frame, 0, 8);
+                    break;
+                case GOAWAY:
+                    synchronized (this) {
+                        goingAway = true; //Finish what is open, the client will close when it has its answers
+                    }
+                    break;
+                case WINDOW_UPDATE:
+                    onWindowUpdate(id, length);
+                    break;
+                default:
+                    break; //Unknown frame types are ignored
+            }
+        }
+    }
+
+    private void onData(int id, int flags, int length) throws IOException {
+        if (id == 0) throw new Http2Exception(PROTOCOL_ERROR, "DATA on stream 0");
+        int off = 0;
+        int end = length;
+        if ((flags & PADDED) != 0) {
+            if (length < 1 || (frame[0] & 0xff) >= length) throw new Http2Exception(PROTOCOL_ERROR, "Bad padding");
+            off = 1;
+            end -= frame[0] & 0xff;
+        }
+        if (length > receiveWindow) throw new Http2Exception(FLOW_CONTROL_ERROR, "Connection window exceeded");
+        receiveWindow -= length; //Padding counts too
+        Stream st;
+        synchronized (this) {
+            st = active.get(id);
+        }
+        if (st == null && id > lastStreamId) throw new Http2Exception(PROTOCOL_ERROR, "DATA on idle stream");
+        boolean overrun = st != null && !st.reset && length > st.receiveWindow;
+        if (st == null || overrun || !st.receiving) {
+            if (length > 0) { //Closed, reset or answered meanwhile, the bytes still count against the connection
+                writeWindowUpdate(0, length);
+                receiveWindow += length;
+            }
+            if (overrun) resetStream(st, FLOW_CONTROL_ERROR);
+            else if (st != null) st.receiveWindow -= length;
+            return;
+        }
+        st.receiveWindow -= length;
+        st.append(frame, off, end - off);
+        boolean endStream = (flags & END_STREAM) != 0;
+        if (!endStream && st.bodyLength > SocketHandler.MAX_BODY) { //Too large, answered now
+            st.truncated = true;
+            endStream = true;
+        }
+        if (length > 0) {
+            synchronized (out) { //Both updates in one write
+                writeHeader(WINDOW_UPDATE, 0, 0, 4);
+                writeInt(length);
+                receiveWindow += length;
+                if (!endStream && st.receiving) {
+                    writeHeader(WINDOW_UPDATE, 0, id, 4);
+                    writeInt(length);
+                    st.receiveWindow += length;
+                }
+                out.flush();
+            }
+        }
+        if (endStream && st.receiving) st.endOfRequest();
+    }
+
+    private void onHeaders(int id, int flags, int length) throws IOException {
+        if (id == 0) throw new Http2Exception(PROTOCOL_ERROR, "HEADERS on stream 0");
+        int off = 0;
+        int end = length;
+        if ((flags & PADDED) != 0) {
+            if (length < 1) throw new Http2Exception(PROTOCOL_ERROR, "Bad padding");
+            off = 1;
+            end -= frame[0] & 0xff;
+        }
+        if ((flags & PRIORITY_FLAG) != 0) off += 5;
+        if (end < off) throw new Http2Exception(PROTOCOL_ERROR, "Bad padding");
+        block.reset();
+        blockStream = id;
+        blockEnd = (flags & END_STREAM) != 0;
+        appendBlock(frame, off, end - off);
+        if ((flags & END_HEADERS) != 0) onHeaderBlock();
+    }
+
+    private void appendBlock(byte[] b, int off, int len) throws IOException {
+        if (block.size() + len > MAX_HEADER_LIST) throw new Http2Exception(PROTOCOL_ERROR, "Header block too large");
+        block.write(b, off, len);
+    }
+
+    /**
+     * Decodes a complete header block and opens its stream, or ends one with trailers
+     */
+    private void onHeaderBlock() throws IOException {
+        int id = blockStream;
+        blockStream = 0;
+        List<String[]> fields = new ArrayList<String[]>();
+        try {
+            decoder.decode(block.toByteArray(), 0, block.size(), fields, MAX_HEADER_LIST);
+        } catch (Http2Exception e) {
+            throw e;
+        } catch (IOException e) {
+            throw new Http2Exception(COMPRESSION_ERROR, e.getMessage()); //Table state is lost, the connection can't go on
+        }
+
+        Stream st;
+        synchronized (this) {
+            st = active.get(id);
+        }
+        if (st != null) { //Trailers, which end the request and are otherwise ignored
+            if (!st.receiving || !blockEnd) {
+                resetStream(st, PROTOCOL_ERROR);
+            } else {
+                st.endOfRequest();
+            }
+            return;
+        }
+        if (id % 2 == 0 || id <= lastStreamId) throw new Http2Exception(PROTOCOL_ERROR, "Bad stream id " + id);
+        lastStreamId = id;
+
+        boolean refuse;
+        synchronized (this) {
+            refuse = goingAway || active.size() >= maxStreams;
+        }
+        if (refuse) {
+            writeReset(id, REFUSED_STREAM);
+            return;
+        }
+        st = new Stream(id, true);
+        if (!st.setHeaders(fields)) {
+            writeReset(id, PROTOCOL_ERROR); //Malformed request
+            return;
+        }
+        synchronized (this) {
+            active.put(id, st);
+        }
+        if (blockEnd) st.endOfRequest();
+    }
+
+    private void onWindowUpdate(int id, int length) throws IOException {
+        if (length != 4) throw new Http2Exception(FRAME_SIZE_ERROR, "Bad WINDOW_UPDATE");
+        int increment = ((frame[0] & 0x7f) << 24) | (frame[1] & 0xff) << 16 | (frame[2] & 0xff) << 8 | frame[3] & 0xff;
+        Stream overflowed = null;
+        synchronized (this) {
+            if (id == 0) {
+                if (increment == 0) throw new Http2Exception(PROTOCOL_ERROR, "Zero WINDOW_UPDATE");
+                if ((long) sendWindow + increment > Integer.MAX_VALUE) throw new Http2Exception(FLOW_CONTROL_ERROR, "Window overflow");
+                sendWindow += increment;
+            } else {
+                Stream st = active.get(id);
+                if (st == null) return; //Finished meanwhile
+                if (increment == 0 || (long) st.window + increment > Integer.MAX_VALUE) {
+                    overflowed = st;
+                } else {
+                    st.window += increment;
+                }
+            }
+            notifyAll();
+        }
+        if (overflowed != null) resetStream(overflowed, increment == 0 ? PROTOCOL_ERROR : FLOW_CONTROL_ERROR);
+    }
+
+    /**
+     * Applies the client's settings, from a SETTINGS frame or the HTTP2-Settings header
+     * @param ack whether to acknowledge them, the header is acknowledged by the 101 instead
+     */
+    private void applySettings(byte[] b, boolean ack) throws IOException {
+        if (b.length % 6 != 0) throw new Http2Exception(FRAME_SIZE_ERROR, "Bad SETTINGS length");
+        for (int i = 0; i < b.length; i += 6) {
+            int id = (b[i] & 0xff) << 8 | b[i + 1] & 0xff;
+            long value = (b[i + 2] & 0xffL) << 24 | (b[i + 3] & 0xff) << 16 | (b[i + 4] & 0xff) << 8 | b[i + 5] & 0xff;
+            switch (id) {
+                case 1: //HEADER_TABLE_SIZE
+                    synchronized (out) {
+                        encoder.setMaxTableSize((int) Math.min(value, Integer.MAX_VALUE));
+                    }
+                    break;
+                case 2: //ENABLE_PUSH, nothing is pushed either way
+                    if (value > 1) throw new Http2Exception(PROTOCOL_ERROR, "Bad ENABLE_PUSH");
+                    break;
+                case 4: //INITIAL_WINDOW_SIZE, changes the window of every open stream by the difference
+                    if (value > Integer.MAX_VALUE) throw new Http2Exception(FLOW_CONTROL_ERROR, "Window too large");
+                    synchronized (this) {
+                        int delta = (int) value - initialWindow;
+                        initialWindow = (int) value;
+                        for (Stream st : active.values()) {
+                            st.window += delta;
+                        }
+                        notifyAll();
+                    }
+                    break;
+                case 5: //MAX_FRAME_SIZE
+                    if (value < FRAME_SIZE || value > 16777215) throw new Http2Exception(PROTOCOL_ERROR, "Bad MAX_FRAME_SIZE");
+                    frameSize = (int) value;
+                    break;
+                default:
+                    break; //MAX_CONCURRENT_STREAMS and MAX_HEADER_LIST_SIZE don't limit a server that doesn't push
+            }
+        }
+        if (ack) writeFrame(SETTINGS, ACK, 0, frame, 0, 0);
+    }
+
+    /**
+     * Ends the connection: waits a while for open streams to finish unless it failed, sends GOAWAY and closes
+     */
+    private void close(int error) {
+        synchronized (this) {
+            goingAway = true;
+            long deadline = System.currentTimeMillis() + SocketHandler.keepAliveTimeout;
+            try {
+                while (error == NO_ERROR && !closed && !active.isEmpty() && System.currentTimeMillis() < deadline) {
+                    wait(Math.max(1, deadline - System.currentTimeMillis()));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            synchronized (out) {
+                writeHeader(GOAWAY, 0, 0, 8);
+                writeInt(lastStreamId);
+                writeInt(error);
+                out.flush();
+            }
+        } catch (IOException e) {
+            //Client is already gone
+        }
+        synchronized (this) {
+            closed = true; //Streams still waiting for window give up
+            notifyAll();
+        }
+        GracefulClose.close(s);
+        TimerWheel.shared.cancel(deadline);
+    }
+
+    private void writeSettings() throws IOException {
+        synchronized (out) {
+            writeHeader(SETTINGS, 0, 0, 12);
+            out.write(new byte[] {0, 3}); //MAX_CONCURRENT_STREAMS
+            writeInt(maxStreams);
+            out.write(new byte[] {0, 4}); //INITIAL_WINDOW_SIZE
+            writeInt(window);
+            if (window > 65535) { //The connection window only grows by WINDOW_UPDATE
+                writeHeader(WINDOW_UPDATE, 0, 0, 4);
+                writeInt(window - 65535);
+                receiveWindow = window;
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Writes one whole frame and flushes it
+     */
+    private void writeFrame(int type, int flags, int stream, byte[] payload, int off, int len) throws IOException {
+        synchronized (out) {
+            writeHeader(type, flags, stream, len);
+            out.write(payload, off, len);
+            out.flush();
+        }
+    }
+
+    private void writeHeader(int type, int flags, int stream, int length) throws IOException {
+        out.write(length >>> 16);
+        out.write(length >>> 8);
+        out.write(length);
+        out.write(type);
+        out.write(flags);
+        writeInt(stream);
+    }
+
+    private void writeInt(int v) throws IOException {
+        out.write(v >>> 24);
+        out.write(v >>> 16);
+        out.write(v >>> 8);
+        out.write(v);
+    }
+
+    private void writeWindowUpdate(int stream, int increment) throws IOException {
+        synchronized (out) {
+            writeHeader(WINDOW_UPDATE, 0, stream, 4);
+            writeInt(increment);
+            out.flush();
+        }
+    }
+
+    private void writeReset(int stream, int error) throws IOException {
+        synchronized (out) {
+            writeHeader(RST_STREAM, 0, stream, 4);
+            writeInt(error);
+            out.flush();
+        }
+    }
+
+    /**
+     * Resets a stream from the reading side and stops its thread at its next write
+     */
+    private void resetStream(Stream st, int error) throws IOException {
+        synchronized (this) {
+            st.reset = true;
+            st.receiving = false;
+            if (!st.dispatched) active.remove(st.id);
+            notifyAll();
+        }
+        writeReset(st.id, error);
+    }
+
+    /**
+     * Sends a response head, split into CONTINUATION frames if it doesn't fit in one
+     */
+    private void writeHeaders(Stream st, List<String[]> headers, boolean end) throws IOException {
+        synchronized (out) {
+            if (st.reset) throw new IOException("Stream reset");
+            ByteArrayOutputStream b = new ByteArrayOutputStream(256);
+            encoder.encode(headers, b); //Once encoded the block must be sent, the client's table has to see it
+            byte[] encoded = b.toByteArray();
+            int max = frameSize;
+            int n = Math.min(encoded.length, max);
+            writeHeader(HEADERS, (end ? END_STREAM : 0) | (n == encoded.length ? END_HEADERS : 0), st.id, n);
+            out.write(encoded, 0, n);
+            for (int off = n; off < encoded.length; off += n) {
+                n = Math.min(encoded.length - off, max);
+                writeHeader(CONTINUATION, off + n == encoded.length ? END_HEADERS : 0, st.id, n);
+                out.write(encoded, off, n);
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Sends body bytes as DATA frames, waiting for flow control window as needed
+     */
+    private void writeData(Stream st, byte[] b, int off, int len, boolean end) throws IOException {
+        if (len == 0) {
+            if (end) writeFrame(DATA, END_STREAM, st.id, b, off, 0);
+            return;
+        }
+        while (len > 0) {
+            int n = reserve(st, len);
+            writeFrame(DATA, end && n == len ? END_STREAM : 0, st.id, b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Takes send window for up to one frame of a stream's data
+     * @return bytes that may be sent now
+     * @throws IOException if the stream is reset, the connection closes, or the window stays shut too long
+     */
+    private synchronized int reserve(Stream st, int want) throws IOException {
+        long deadline = System.currentTimeMillis() + WINDOW_TIMEOUT;
+        while (true) {
+            if (st.reset || closed) throw new IOException("Stream closed");
+            int n = Math.min(want, Math.min(frameSize, Math.min(sendWindow, st.window)));
+            if (n > 0) {
+                sendWindow -= n;
+                st.window -= n;
+                return n;
+            }
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) throw new IOException("Flow control window stayed closed");
+            try {
+                wait(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * The connection's write deadline, on TimerWheel.shared like SocketHandler's. Frames are written holding the
+     * out lock, so one write blocked on a client that stopped reading holds up every stream. The deadline is armed
+     * when a write starts and pushed back whenever bytes went out since; a write that gets nothing out for a whole
+     * --write-timeout closes the socket, which fails the write and lets the streams and the connection end.
+     */
+    private class WriteDeadline extends TimerWheel.Timeout {
+        private volatile long written; // Bytes handed to the socket
+        private volatile boolean writing; // A socket write is under way
+        private long progress; // Value of written when last armed or pushed back, guarded by this
+
+        /**
+         * @return the socket's stream, timing every write
+         */
+        OutputStream wrap(OutputStream os) {
+            return new FilterOutputStream(os) {
+                public void write(int b) throws IOException {
+                    begin();
+                    try {
+                        out.write(b);
+                        written++;
+                    } finally {
+                        writing = false;
+                    }
+                }
+
+                public void write(byte[] b, int off, int len) throws IOException {
+                    begin();
+                    try {
+                        out.write(b, off, len);
+                        written += len;
+                    } finally {
+                        writing = false;
+                    }
+                }
+            };
+        }
+
+        long written() {
+            return written;
+        }
+
+        private void begin() {
+            writing = true;
+            TimerWheel wheel = TimerWheel.shared;
+            if (wheel.isPending(this)) return; //Armed by an earlier write, it pushes itself back while bytes go out
+            synchronized (this) {
+                if (wheel.isPending(this)) return;
+                progress = written;
+                wheel.schedule(this, SocketHandler.writeTimeout);
+            }
+        }
+
+        protected void expired() {
+            if (!writing) return; //Nothing being written, the next write arms it again
+            if (written != progress) { //Slow reader, but reading
+                progress = written;
+                TimerWheel.shared.schedule(this, SocketHandler.writeTimeout);
+                return;
+            }
+            SocketHandler.timeouts[SocketHandler.WRITE_TIMEOUT].increment();
+            try {
+                s.setSoLinger(true, 0); //Reset, rather than leave unread frames queued in the kernel
+                s.close();
+            } catch (IOException e) {
+
+            }
+        }
+    }
+
+    /**
+     * One request and its response
+     */
+    class Stream implements AdmissionController.Refusable {
+        final int id;
+        byte[] request; // HTTP/1.1 request replayed through SocketHandler, set once it is complete
+        boolean head; // Request was HEAD, the response has no body whatever its headers say
+        int window; // Send window, guarded by the connection
+        int receiveWindow = Http2Connection.window; // Window granted to the client for the body and not used yet, read side only
+        volatile boolean reset; // Reset by either side
+        volatile boolean receiving; // Request body still arriving
+        boolean truncated; // Answered before the client finished sending the body
+        boolean dispatched; // Running or queued, guarded by the connection
+
+        private StringBuilder requestHead; // Request line and headers, until the body is complete
+        private boolean expectsBody; // POST or body announced, so a Content-Length is sent
+        private ByteArrayOutputStream body;
+        private long bodyLength; // Body bytes received, may be more than body holds
+
+        Stream(int id, boolean receiving) {
+            this.id = id;
+            this.receiving = receiving;
+            synchronized (Http2Connection.this) {
+                this.window = initialWindow;
+            }
+        }
+
+        /**
+         * Turns the request's header fields into an HTTP/1.1 request head
+         * @return false if the request is malformed
+         */
+        boolean setHeaders(List<String[]> fields) {
+            String method = null;
+            String path = null;
+            String authority = null;
+            StringBuilder headers = new StringBuilder();
+            StringBuilder cookies = null; // Cookie crumbs, joined back into one header
+            boolean regular = false;
+            for (String[] f : fields) {
+                String name = f[0];
+                String value = f[1];
+                if (!valid(name) || !valid(value)) return false; //A CR or LF would smuggle in headers of its own
+                if (name.startsWith(":")) {
+                    if (regular) return false; //Pseudo headers come first
+                    if (name.equals(":method") && method == null) {
+                        method = value;
+                    } else if (name.equals(":path") && path == null) {
+                        path = value;
+                    } else if (name.equals(":authority") && authority == null) {
+                        authority = value;
+                    } else if (!name.equals(":scheme")) {
+                        return false;
+                    }
+                    continue;
+                }
+                regular = true;
+                if (!name.equals(name.toLowerCase(Locale.ROOT)) || CONNECTION_HEADERS.contains(name)
+                        || (name.equals("te") && !value.equals("trailers"))) {
+                    return false;
+                }
+                if (name.equals("cookie")) {
+                    cookies = cookies == null ? new StringBuilder(value) : cookies.append("; ").append(value);
+                } else if (name.equals("content-length")) {
+                    expectsBody = true; //Sent again from the body actually received
+                } else if (!(name.equals("host") && authority != null)) {
+                    headers.append(name).append(": ").append(value).append("\r\n");
+                }
+            }
+            if (method == null || path == null || path.isEmpty()) return false;
+
+            requestHead = new StringBuilder(method.length() + path.length() + headers.length() + 64);
+            requestHead.append(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+            if (authority != null) requestHead.append("Host: ").append(authority).append("\r\n");
+            requestHead.append(headers);
+            if (cookies != null) requestHead.append("Cookie: ").append(cookies).append("\r\n");
+            head = method.equals("HEAD");
+            expectsBody |= method.equals("POST");
+            return true;
+        }
+
+        private boolean valid(String s) {
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '\r' || c == '\n' || c == 0) return false;
+            }
+            return true;
+        }
+
+        /**
+         * Adds request body bytes. Past SocketHandler.MAX_BODY they are only counted, and onData ends the request
+         * there so it is answered with 413.
+         */
+        void append(byte[] b, int off, int len) {
+            if (body == null) body = new ByteArrayOutputStream(Math.min(len, SocketHandler.MAX_BODY));
+            bodyLength += len;
+            if (bodyLength <= SocketHandler.MAX_BODY) body.write(b, off, len);
+        }
+
+        /**
+         * The request is complete, puts it together and starts answering it
+         */
+        void endOfRequest() {
+            receiving = false;
+            if (requestHead != null) {
+                if (expectsBody || body != null) requestHead.append("Content-Length: ").append(bodyLength).append("\r\n");
+                requestHead.append("\r\n");
+                byte[] headBytes = requestHead.toString().getBytes(StandardCharsets.ISO_8859_1);
+                requestHead = null;
+                if (body != null && bodyLength <= SocketHandler.MAX_BODY) {
+                    request = Arrays.copyOf(headBytes, headBytes.length + body.size());
+                    System.arraycopy(body.toByteArray(), 0, request, headBytes.length, body.size());
+                } else {
+                    request = headBytes; //SocketHandler answers 413 from the length alone
+                }
+                body = null;
+            }
+            dispatch();
+        }
+
+        void dispatch() {
+            synchronized (Http2Connection.this) {
+                dispatched = true;
+            }
+            try {
+                if (admission != null) admission.execute(this);
+                else streams().execute(this);
+            } catch (RejectedExecutionException e) {
+                refuse("queue full");
+            }
+        }
+
+        public void refuse(String reason) {
+            HttpEvents.rejected(s, reason);
+            if (!reset) {
+                try {
+                    writeReset(id, REFUSED_STREAM); //Never processed, the client may send it again
+                } catch (IOException e) {
+                    //Connection is gone
+                }
+            }
+            finished();
+        }
+
+        public void run() {
+            StreamOutput response = new StreamOutput(this);
+            try {
+                new SocketHandler(new StreamSocket(s, request, response)).run();
+                response.finish();
+                if (truncated && !reset) writeReset(id, NO_ERROR); //Tells the client to stop sending the rest of the body
+            } catch (IOException e) {
+                if (!reset) {
+                    try {
+                        writeReset(id, INTERNAL_ERROR);
+                    } catch (IOException ignored) {
+                        //Connection is gone
+                    }
+                }
+            } finally {
+                finished();
+            }
+        }
+
+        private void finished() {
+            synchronized (Http2Connection.this) {
+                active.remove(id);
+                Http2Connection.this.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Takes the HTTP/1.1 response SocketHandler writes for a stream and sends it as HEADERS and DATA frames as it
+     * comes: the head is translated into header fields, and the body is passed on, unchunked if it was chunked.
+     * The stream ends with the body's last byte when its length is known, otherwise once the handler is done.
+     */
+    class StreamOutput extends OutputStream {
+        private static final int HEAD = 0, BODY = 1, CHUNK_SIZE = 2, CHUNK_DATA = 3, CHUNK_END = 4, DONE = 5;
+
+        private final Stream st;
+        private final ByteArrayOutputStream head = new ByteArrayOutputStream(512); // Response head so far
+        private int state = HEAD;
+        private List<String[]> fields; // Translated head, sent with the first body bytes or at the end
+        private long remaining = -1; // Body bytes left by Content-Length, -1 if not known
+        private long chunk; // Bytes left in the current chunk
+        private long size; // Size of the chunk being read
+        private boolean extension; // Past the size, in a chunk extension
+        private final byte[] one = new byte[1];
+
+        StreamOutput(Stream st) {
+            this.st = st;
+        }
+
+        public void write(int b) throws IOException {
+            one[0] = (byte) b;
+            write(one, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (st.reset) throw new IOException("Stream reset");
+            int end = off + len;
+            while (off < end) {
+                switch (state) {
+                    case HEAD:
+                        while (off < end && state == HEAD) {
+                            head.write(b[off++]);
+                            if (head.size() >= 4 && endsWithBlankLine()) parseHead();
+                        }
+                        break;
+                    case BODY: {
+                        int n = (int) (remaining < 0 ? end - off : Math.min(end - off, remaining));
+                        if (remaining >= 0) remaining -= n;
+                        data(b, off, n, remaining == 0);
+                        off += n;
+                        break;
+                    }
+                    case CHUNK_SIZE: {
+                        int c = b[off++];
+                        if (c == '\n') {
+                            extension = false;
+                            if (size == 0) { //Last chunk, trailers are dropped
+                                data(b, off, 0, true);
+                            } else {
+                                chunk = size;
+                                state = CHUNK_DATA;
+                            }
+                        } else if (c == ';') {
+                            extension = true;
+                        } else if (!extension && Character.digit(c, 16) >= 0) {
+                            size = size * 16 + Character.digit(c, 16);
+                        }
+                        break;
+                    }
+                    case CHUNK_DATA: {
+                        int n = (int) Math.min(end - off, chunk);
+                        data(b, off, n, false);
+                        off += n;
+                        chunk -= n;
+                        if (chunk == 0) state = CHUNK_END;
+                        break;
+                    }
+                    case CHUNK_END:
+                        if (b[off++] == '\n') {
+                            state = CHUNK_SIZE;
+                            size = 0;
+                        }
+                        break;
+                    default:
+                        off = end; //Nothing may follow the end of the stream
+                }
+            }
+        }
+
+        private boolean endsWithBlankLine() {
+            byte[] h = head.toByteArray(); //Only while the head is arriving, a few hundred bytes
+            int n = h.length;
+            return h[n - 1] == '\n' && (h[n - 2] == '\n' || (h[n - 2] == '\r' && h[n - 3] == '\n'));
+        }
+
+        /**
+         * Turns the HTTP/1.x head into HTTP/2 header fields and decides how the body is delimited
+         */
+        private void parseHead() throws IOException {
+            String[] lines = head.toString("ISO-8859-1").split("\r?\n");
+            if (!lines[0].startsWith("HTTP/") || lines[0].length() < 12) throw new IOException("Not an HTTP response");
+            String status = lines[0].substring(9, 12);
+            fields = new ArrayList<String[]>();
+            fields.add(new String[] {":status", status});
+            boolean chunked = false;
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) continue;
+                String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                String value = lines[i].substring(colon + 1).trim();
+                if (name.equals("transfer-encoding")) {
+                    chunked = value.equalsIgnoreCase("chunked");
+                } else if (!CONNECTION_HEADERS.contains(name)) {
+                    if (name.equals("content-length")) remaining = Long.parseLong(value);
+                    fields.add(new String[] {name, value});
+                }
+            }
+            if (st.head || status.equals("204") || status.equals("304") || status.startsWith("1")) {
+                remaining = 0;
+            }
+            if (remaining == 0) {
+                state = DONE;
+                sendHeaders(true);
+            } else {
+                state = chunked ? CHUNK_SIZE : BODY;
+                if (chunked) remaining = -1;
+            }
+        }
+
+        private void sendHeaders(boolean end) throws IOException {
+            List<String[]> f = fields;
+            fields = null;
+            writeHeaders(st, f, end);
+        }
+
+        private void data(byte[] b, int off, int len, boolean end) throws IOException {
+            if (fields != null) sendHeaders(false);
+            if (end) state = DONE;
+            writeData(st, b, off, len, end);
+        }
+
+        /**
+         * Called once the handler is done, ends the stream if the body's end wasn't visible in it
+         */
+        void finish() throws IOException {
+            if (state == HEAD) {
+                if (head.size() == 0) throw new IOException("No response");
+                parseHead(); //Bare error response, the end of the output ends the head
+            }
+            if (state != DONE) {
+                if (fields != null) {
+                    sendHeaders(true);
+                } else {
+                    writeData(st, one, 0, 0, true);
+                }
+                state = DONE;
+            }
+        }
+    }
+
+    /**
+     * Socket stand-in a stream's request is read from and its response written to. It reports its output as
+     * already shut down so GracefulClose leaves it alone, the real socket belongs to the connection.
+     */
+    static class StreamSocket extends Socket {
+        private final Socket connection;
+        private final InputStream in;
+        private final OutputStream out;
+
+        StreamSocket(Socket connection, byte[] request, OutputStream out) {
+            this.connection = connection;
+            this.in = new ByteArrayInputStream(request);
+            this.out = out;
+        }
+
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        public InetAddress getInetAddress() {
+            return connection.getInetAddress();
+        }
+
+        public int getLocalPort() {
+            return connection.getLocalPort();
+        }
+
+        public void setSoTimeout(int timeout) {
+
+        }
+
+        public boolean isOutputShutdown() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+import java.net.Socket;
+import jdk.jfr.*;
+
+/**
+ * Java Flight Recorder events for the phases of a request, so a recording shows where the time of a slow request
+ * went next to GC, lock and I/O events without attaching a profiler. Every event is created, checked with
+ * shouldCommit and only then filled in, so with no recording running a phase costs one flag check and the JIT
+ * removes the event object altogether.
+ *
+ * The per request phases have a default threshold, so a continuous recording with the stock settings keeps the
+ * outliers and not millions of fast requests. Set the threshold to 0 ms in a .jfc file to record every request.
+ */
+public class HttpEvents {
+
+    @Name("http.ConnectionAccepted")
+    @Label("Connection Accepted")
+    @Category("HTTP Server")
+    @Description("A client connection was accepted")
+    @StackTrace(false)
+    static class ConnectionAccepted extends Event {
+        @Label("Remote Address")
+        String remote;
+
+        @Label("Local Port")
+        int port;
+    }
+
+    @Name("http.RequestParsed")
+    @Label("Request Parsed")
+    @Category("HTTP Server")
+    @Description("Request head and body read and parsed, from the first byte of the request")
+    @StackTrace(false)
+    @Threshold("10 ms")
+    static class RequestParsed extends Event {
+        @Label("Method")
+        String method;
+
+        @Label("Target")
+        String target;
+
+        @Label("Head Size")
+        @DataAmount
+        long headBytes;
+
+        @Label("Body Size")
+        @DataAmount
+        long bodyBytes;
+    }
+
+    @Name("http.FileResolved")
+    @Label("File Resolved")
+    @Category("HTTP Server")
+    @Description("Request target mapped to a file under the document root")
+    @StackTrace(false)
+    @Threshold("1 ms")
+    static class FileResolved extends Event {
+        @Label("Target")
+        String target;
+
+        @Label("Path")
+        @Description("File path from the document root, null if the target was rejected")
+        String path;
+    }
+
+    @Name("http.CgiExecuted")
+    @Label("CGI Executed")
+    @Category("HTTP Server")
+    @Description("CGI script run and its output sent")
+    @StackTrace(false)
+    static class CgiExecuted extends Event {
+        @Label("Script")
+        String script;
+
+        @Label("Mode")
+        @Description("fork, pool, or cache when the output may have come from CgiCache")
+        String mode;
+
+        @Label("Status")
+        int status;
+
+        @Label("Output Size")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("http.ResponseWritten")
+    @Label("Response Written")
+    @Category("HTTP Server")
+    @Description("Request handled and its response written, from the parsed head to the last byte")
+    @StackTrace(false)
+    @Threshold("10 ms")
+    static class ResponseWritten extends Event {
+        @Label("Method")
+        String method;
+
+        @Label("Target")
+        String target;
+
+        @Label("Status")
+        int status;
+
+        @Label("Body Size")
+        @DataAmount
+        long bytes;
+
+        @Label("Keep Alive")
+        boolean keepAlive;
+    }
+
+    @Name("http.Rejected503")
+    @Label("Rejected With 503")
+    @Category("HTTP Server")
+    @Description("Connection or request turned away with 503 Service Unavailable")
+    @StackTrace(false)
+    static class Rejected503 extends Event {
+        @Label("Remote Address")
+        String remote;
+
+        @Label("Reason")
+        String reason;
+    }
+
+    /**
+     * Records a 503
+     * @param s the client's socket
+     * @param reason why it was turned away
+     */
+    static void rejected(Socket s, String reason) {
+        Rejected503 event = new Rejected503();
+        if (event.shouldCommit()) {
+            event.remote = address(s);
+            event.reason = reason;
+            event.commit();
+        }
+    }
+
+    /**
+     * Records a newly accepted connection
+     */
+    static void accepted(Socket s) {
+        ConnectionAccepted event = new ConnectionAccepted();
+        if (event.shouldCommit()) {
+            event.remote = address(s);
+            event.port = s.getLocalPort();
+            event.commit();
+        }
+    }
+
+    private static String address(Socket s) {
+        return s.getInetAddress() == null ? null : s.getInetAddress().getHostAddress(); //Null once closed
+    }
+}
@@ -0,0 +1,64 @@
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+
+/**
+ * Opens the listening channels and sets up accepted connections, based on the startup options. With more than one
+ * acceptor each gets its own channel bound to the same port with SO_REUSEPORT, so the kernel spreads incoming
+ * connections across them instead of every acceptor queueing on one accept lock. Where SO_REUSEPORT isn't
+ * available the acceptors share one channel instead.
+ */
+public class Listener {
+
+    static int acceptors = 1; // Accepting threads, each with its own worker group
+    static int backlog = 1024; // Pending connection queue length asked for, the kernel may cap it
+    static boolean noDelay = true; // TCP_NODELAY on accepted connections
+    static int sendBuffer; // SO_SNDBUF for accepted connections, 0 leaves the OS default
+    static int receiveBuffer; // SO_RCVBUF, set on the listening channel so it is in place before the handshake
+
+    private static ServerSocketChannel fallback; // Shared channel when SO_REUSEPORT isn't supported
+
+    /**
+     * Reads --acceptors, --backlog, --tcp-nodelay, --send-buffer and --receive-buffer
+     */
+    public static void configure(ServerOptions options) {
+        acceptors = Math.max(1, options.getInt("acceptors", 1));
+        backlog = options.getInt("backlog", 1024);
+        noDelay = options.getBoolean("tcp-nodelay", true);
+        sendBuffer = options.getInt("send-buffer", 0);
+        receiveBuffer = options.getInt("receive-buffer", 0);
+    }
+
+    /**
+     * Opens a listening channel for one acceptor
+     * @param port port to listen on
+     * @return a channel of its own when there is a single acceptor or SO_REUSEPORT works, otherwise the channel
+     * every acceptor shares
+     */
+    public static synchronized ServerSocketChannel open(int port) throws IOException {
+        if (fallback != null) return fallback;
+
+        ServerSocketChannel ch = ServerSocketChannel.open();
+        ch.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        if (receiveBuffer > 0) ch.setOption(StandardSocketOptions.SO_RCVBUF, receiveBuffer);
+        if (acceptors > 1) {
+            if (ch.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                ch.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            } else {
+                System.err.println("SO_REUSEPORT not supported, acceptors will share one listening socket");
+                fallback = ch;
+            }
+        }
+        ch.bind(new InetSocketAddress(port), backlog);
+        return ch;
+    }
+
+    /**
+     * Applies the per connection socket options to a newly accepted connection
+     */
+    public static void accepted(Socket s) throws SocketException {
+        HttpEvents.accepted(s);
+        s.setTcpNoDelay(noDelay);
+        if (sendBuffer > 0) s.setSendBufferSize(sendBuffer);
+    }
+}
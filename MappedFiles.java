@@ -0,0 +1,129 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shares one read-only memory mapping per large file across every connection sending it. Mappings are reference
+ * counted: each response acquires the mapping and releases it when done, and mappings nobody has used for a while
+ * are dropped. The JDK has no explicit unmap, so a dropped mapping is unmapped when its buffer is garbage collected.
+ *
+ * Nothing is locked server-wide: a hit is a ConcurrentHashMap get and an atomic increment, and the file's length
+ * and modification time come from FileMetadata, so it needs no stat either. Mapping a new or changed file only
+ * holds up other requests for the same file.
+ */
+public class MappedFiles {
+
+    static MappedFiles shared; // Mappings used by SocketHandler, null when the mmap mode is off
+    static long threshold; // Files at least this large are served from a mapping
+
+    private ConcurrentHashMap<Path, Mapping> mappings = new ConcurrentHashMap<Path, Mapping>();
+    private long idleTimeout; // Milliseconds an unused mapping is kept
+
+    /**
+     * A mapped file and the number of responses currently sending from it
+     */
+    static class Mapping {
+        private final MappedByteBuffer buffer;
+        final long lastModified;
+        final long length;
+        private final AtomicInteger refs = new AtomicInteger(); // Responses sending from it
+        private volatile long lastUsed;
+
+        Mapping(MappedByteBuffer buffer, long lastModified) {
+            this.buffer = buffer;
+            this.lastModified = lastModified;
+            this.length = buffer.capacity();
+        }
+
+        /**
+         * @return a view of the whole file with its own position and limit
+         */
+        ByteBuffer buffer() {
+            return buffer.duplicate();
+        }
+
+        /**
+         * @return true if it maps the version of the file the metadata describes
+         */
+        boolean current(FileMetadata.Info info) {
+            return lastModified == info.lastModified && length == info.length;
+        }
+    }
+
+    public MappedFiles(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+        ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "mapping-sweeper");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000, idleTimeout / 2);
+        sweeper.scheduleWithFixedDelay(this::sweep, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Turns the mmap mode on with --mmap-threshold=BYTES. --mmap-idle sets how long unused mappings are kept.
+     */
+    public static void configure(ServerOptions options) {
+        threshold = options.getInt("mmap-threshold", 0);
+        shared = threshold > 0 ? new MappedFiles(options.getInt("mmap-idle", 30000)) : null;
+    }
+
+    /**
+     * Gets the shared mapping of a file, mapping it if it isn't mapped yet or has changed since. Every call has to
+     * be matched by a release.
+     * @param info the file's metadata, from FileMetadata.lookup
+     * @return the mapping, or null if the file is too large to map in one buffer
+     */
+    public Mapping acquire(File file, FileMetadata.Info info) throws IOException {
+        Path key = file.toPath().toAbsolutePath().normalize();
+        Mapping m = mappings.get(key);
+        if (m == null || !m.current(info)) {
+            try { //Responses still using an older mapping keep their own reference to it
+                m = mappings.compute(key, (k, old) -> old != null && old.current(info) ? old : map(k, info.lastModified));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            if (m == null) return null;
+        }
+        m.refs.incrementAndGet(); //Even if the sweeper drops it now, the buffer stays valid for this response
+        return m;
+    }
+
+    public void release(Mapping m) {
+        m.lastUsed = System.currentTimeMillis();
+        m.refs.decrementAndGet();
+    }
+
+    /**
+     * Runs inside ConcurrentHashMap.compute, so the IOException travels out unchecked
+     */
+    private static Mapping map(Path path, long lastModified) {
+        try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = fc.size();
+            if (size > Integer.MAX_VALUE) return null;
+            return new Mapping(fc.map(FileChannel.MapMode.READ_ONLY, 0, size), lastModified); //Mapping outlives the channel
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Drops mappings that nobody is using and that have been idle longer than the timeout
+     */
+    void sweep() {
+        long now = System.currentTimeMillis();
+        mappings.values().removeIf(m -> m.refs.get() == 0 && now - m.lastUsed > idleTimeout);
+    }
+
+    /**
+     * @return number of files currently mapped
+     */
+    public int size() {
+        return mappings.size();
+    }
+}
@@ -0,0 +1,217 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request counters and latency histograms, served in Prometheus text format on --metrics-path. Everything on the
+ * request path is a LongAdder increment: histograms are found by indexing an array with the method, path class
+ * and status, the path class being read straight off the parser's buffer. Recording a request takes no locks and
+ * allocates nothing, except the first time a combination is seen, when its histogram is made.
+ */
+public class Metrics {
+
+    static Metrics shared; // Metrics recorded by the server, null when turned off
+    static String path = "/metrics"; // Request target the metrics are served on
+
+    private static final String[] METHODS = {RequestParser.GET, RequestParser.HEAD, RequestParser.POST, RequestParser.PUT,
+            RequestParser.DELETE, RequestParser.LINK, RequestParser.UNLINK, "OTHER"};
+    private static final String[] PATH_CLASSES = {"static", "cgi", "metrics", "none"};
+    private static final int STATUSES = 600; // Status codes are indexed directly
+
+    // Bucket upper bounds in microseconds, roughly 1-2.5-5 per decade from 50us to 10s
+    private static final long[] BOUNDS = {50, 100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000,
+            500000, 1000000, 2500000, 5000000, 10000000};
+
+    private AtomicReferenceArray<Histogram> latency = new AtomicReferenceArray<Histogram>(METHODS.length * PATH_CLASSES.length * STATUSES);
+    private LongAdder active = new LongAdder(); // Connections being served by a worker thread
+    private LongAdder accepted = new LongAdder();
+    private LongAdder rejected = new LongAdder(); // Connections turned away with a 503 because the wait queue was full
+    private List<AdmissionController> groups = new CopyOnWriteArrayList<AdmissionController>(); // Worker groups, for the pool gauges
+
+    /**
+     * Lock free latency histogram with fixed log spaced buckets
+     */
+    static class Histogram {
+        final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1]; // Last one is +Inf
+        final LongAdder sum = new LongAdder(); // Microseconds
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long micros) {
+            int lo = 0;
+            int hi = BOUNDS.length;
+            while (lo < hi) { //First bound not below the value
+                int mid = (lo + hi) >>> 1;
+                if (BOUNDS[mid] < micros) lo = mid + 1;
+                else hi = mid;
+            }
+            buckets[lo].increment();
+            sum.add(micros);
+        }
+    }
+
+    /**
+     * Turns metrics on unless --metrics=off. --metrics-path moves the endpoint.
+     */
+    public static void configure(ServerOptions options) {
+        path = options.get("metrics-path", "/metrics");
+        shared = options.get("metrics", "on").equals("off") ? null : new Metrics();
+    }
+
+    /**
+     * Adds a worker group to the pool gauges, which report the sum over all groups
+     */
+    public void observe(AdmissionController group) {
+        groups.add(group);
+    }
+
+    public void connectionStarted() {
+        active.increment();
+    }
+
+    public void connectionEnded() {
+        active.decrement();
+    }
+
+    public void accepted() {
+        accepted.increment();
+    }
+
+    public void rejected() {
+        rejected.increment();
+    }
+
+    /**
+     * Records one answered request
+     * @param method method constant from RequestParser, null if unknown
+     * @param request parser holding the request, null if it has no usable target
+     * @param status status code sent
+     * @param nanos time from the head being parsed to the response being written
+     */
+    public void record(String method, RequestParser request, int status, long nanos) {
+        int m = METHODS.length - 1;
+        for (int i = 0; i < METHODS.length - 1; i++) {
+            if (METHODS[i] == method) {
+                m = i;
+                break;
+            }
+        }
+        int c;
+        if (request == null || request.tokens() < 2) c = 3;
+        else if (request.targetEquals(path)) c = 2;
+        else if (request.targetStartsWith("/cgi_bin/")) c = 1;
+        else c = 0;
+        if (status < 0 || status >= STATUSES) status = 0;
+
+        int index = (m * PATH_CLASSES.length + c) * STATUSES + status;
+        Histogram h = latency.get(index);
+        if (h == null) {
+            latency.compareAndSet(index, null, new Histogram());
+            h = latency.get(index);
+        }
+        h.record(nanos / 1000);
+    }
+
+    /**
+     * @return everything in Prometheus text exposition format
+     */
+    public String render() {
+        StringBuilder sb = new StringBuilder(4096);
+        sb.append("# HELP http_request_duration_seconds Time from a request head being parsed to its response being written\n");
+        sb.append("# TYPE http_request_duration_seconds histogram\n");
+        for (int i = 0; i < latency.length(); i++) {
+            Histogram h = latency.get(i);
+            if (h == null) continue;
+            int status = i % STATUSES;
+            int c = (i / STATUSES) % PATH_CLASSES.length;
+            int m = i / STATUSES / PATH_CLASSES.length;
+            String labels = "method=\"" + METHODS[m] + "\",path=\"" + PATH_CLASSES[c] + "\",status=\"" + status + "\"";
+            long count = 0;
+            for (int b = 0; b < h.buckets.length; b++) {
+                count += h.buckets[b].sum();
+                String le = b < BOUNDS.length ? Double.toString(BOUNDS[b] / 1e6) : "+Inf";
+                sb.append("http_request_duration_seconds_bucket{").append(labels).append(",le=\"").append(le).append("\"} ").append(count).append('\n');
+            }
+            sb.append("http_request_duration_seconds_sum{").append(labels).append("} ").append(h.sum.sum() / 1e6).append('\n');
+            sb.append("http_request_duration_seconds_count{").append(labels).append("} ").append(count).append('\n');
+        }
+
+        gauge(sb, "http_connections_active", "Connections being served by a worker thread", active.sum());
+        counter(sb, "http_connections_accepted_total", "Connections handed to a worker, in nio mode once per batch of requests", accepted.sum());
+        counter(sb, "http_connections_rejected_total", "Connections answered with 503 because the wait queue was full", rejected.sum());
+        sb.append("# HELP http_timeouts_total Connections cut off by a deadline, by what they were waiting for\n");
+        sb.append("# TYPE http_timeouts_total counter\n");
+        for (int i = 0; i < SocketHandler.TIMEOUT_KINDS.length; i++) {
+            sb.append("http_timeouts_total{kind=\"").append(SocketHandler.TIMEOUT_KINDS[i]).append("\"} ")
+                    .append(SocketHandler.timeouts[i].sum()).append('\n');
+        }
+        gauge(sb, "timer_wheel_pending", "Connection deadlines waiting to fire", TimerWheel.shared.size());
+        if (!groups.isEmpty()) {
+            long inFlight = 0, limit = 0, queued = 0, expired = 0;
+            for (AdmissionController group : groups) {
+                inFlight += group.inFlight();
+                limit += group.limit();
+                queued += group.queued();
+                expired += group.expired();
+            }
+            gauge(sb, "worker_pool_active", "Handlers running", inFlight);
+            gauge(sb, "admission_limit", "Handlers allowed to run at once", limit);
+            gauge(sb, "admission_queued", "Handlers waiting for a slot", queued);
+            counter(sb, "admission_expired_total", "Handlers answered with 503 after waiting too long", expired);
+        }
+
+        ContentCache cache = ContentCache.shared;
+        if (cache != null) {
+            counter(sb, "cache_hits_total", "Static file cache hits", cache.hits());
+            counter(sb, "cache_misses_total", "Static file cache misses", cache.misses());
+            counter(sb, "cache_evictions_total", "Static files evicted from the cache", cache.evictions());
+            gauge(sb, "cache_bytes", "Body bytes held by the static file cache", cache.size());
+        }
+        CgiCache cgi = CgiCache.shared;
+        if (cgi != null) {
+            counter(sb, "cgi_cache_hits_total", "CGI requests answered from cached output", cgi.hits());
+            counter(sb, "cgi_cache_stale_total", "CGI requests answered with expired output while it was refreshed", cgi.staleHits());
+            counter(sb, "cgi_cache_misses_total", "CGI requests that found no cached output", cgi.misses());
+            counter(sb, "cgi_cache_coalesced_total", "CGI misses that waited for a run already in progress", cgi.coalesced());
+            gauge(sb, "cgi_cache_bytes", "Bytes held by the CGI cache", cgi.size());
+        }
+        BufferPool pool = BufferPool.shared;
+        counter(sb, "buffer_pool_acquired_total", "Response buffers handed to connections", pool.acquired());
+        counter(sb, "buffer_pool_allocated_total", "Response buffers allocated because the pool was empty", pool.allocated());
+        gauge(sb, "buffer_pool_idle", "Response buffers waiting in the pool", pool.idle());
+        counter(sb, "socket_writes_total", "Write calls made to send responses", pool.writes());
+        if (DocRoot.shared != null) {
+            gauge(sb, "path_cache_entries", "Request targets with a cached resolution", DocRoot.shared.size());
+        }
+        if (FileMetadata.shared != null) {
+            gauge(sb, "file_metadata_entries", "Files with cached metadata and ETag", FileMetadata.shared.size());
+        }
+        if (MappedFiles.shared != null) {
+            gauge(sb, "mapped_files", "Files currently memory mapped", MappedFiles.shared.size());
+        }
+        if (AccessLog.shared != null) {
+            counter(sb, "access_log_dropped_total", "Access log entries dropped because the ring was full", AccessLog.shared.dropped());
+        }
+        if (Compression.shared != null) {
+            gauge(sb, "compression_cache_bytes", "Bytes held by compressed variants", Compression.shared.size());
+        }
+        return sb.toString();
+    }
+
+    private static void gauge(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" gauge\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, long value) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(" counter\n");
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+}
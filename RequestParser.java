@@ -0,0 +1,392 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incremental HTTP/1.x request head parser that works directly on the bytes in a ByteBuffer. It can be fed a
+ * partial head and called again once more bytes have arrived, picking up where it stopped. Nothing is allocated
+ * while parsing: the method and version come back as constants and the target and headers are kept as offsets
+ * into the buffer, so Strings are only made for the parts a handler actually asks for. One parser is reused for
+ * every request on a connection.
+ *
+ * The parser only checks framing and limits. Whether the method, target and version are acceptable is left to
+ * SocketHandler.parseRequest so the error codes stay the same as before.
+ */
+public class RequestParser {
+
+    static int maxHeaderBytes = 8192; // Largest request head, request line included
+    static int maxHeaders = 64; // Most header lines in one request
+
+    // Results of parse
+    public static final int INCOMPLETE = 0;
+    public static final int COMPLETE = 1;
+    public static final int INVALID = 2;
+
+    // Methods, returned by method() so they can be compared with ==
+    public static final String GET = "GET";
+    public static final String HEAD = "HEAD";
+    public static final String POST = "POST";
+    public static final String PUT = "PUT";
+    public static final String DELETE = "DELETE";
+    public static final String LINK = "LINK";
+    public static final String UNLINK = "UNLINK";
+    private static final String[] METHODS = {GET, HEAD, POST, PUT, DELETE, LINK, UNLINK};
+
+    // States
+    private static final int REQUEST_LINE = 0;
+    private static final int HEADER_LINE = 1;
+    private static final int DONE = 2;
+
+    private ByteBuffer buf; // Buffer the offsets point into
+    private int state;
+    private int start; // Index of the first byte of the request
+    private int index; // Next byte to look at
+    private int lineStart; // Index of the first byte of the line being parsed
+    private boolean skipBlankLines; // Ignore empty lines before the request line, as between pipelined requests
+    private int status; // Status to answer with when INVALID
+
+    private int[] tokenStart = new int[3]; // Request line tokens: method, target, version
+    private int[] tokenEnd = new int[3];
+    private int tokens; // Number of space separated tokens on the request line, may be more than 3
+
+    private int[] nameStart;
+    private int[] nameEnd;
+    private int[] valueStart;
+    private int[] valueEnd;
+    private int headers; // Number of headers parsed
+    private int headEnd; // Index just past the blank line ending the head
+
+    public RequestParser() {
+        nameStart = new int[maxHeaders];
+        nameEnd = new int[maxHeaders];
+        valueStart = new int[maxHeaders];
+        valueEnd = new int[maxHeaders];
+    }
+
+    /**
+     * Reads the header limits from the startup options
+     */
+    public static void configure(ServerOptions options) {
+        maxHeaderBytes = options.getInt("max-header-bytes", 8192);
+        maxHeaders = options.getInt("max-headers", 64);
+    }
+
+    /**
+     * Gets ready for the next request
+     * @param skipBlankLines whether empty lines in front of the request line are skipped instead of rejected
+     */
+    public void reset(boolean skipBlankLines) {
+        this.skipBlankLines = skipBlankLines;
+        buf = null;
+        state = REQUEST_LINE;
+        tokens = 0;
+        headers = 0;
+        status = 0;
+    }
+
+    /**
+     * Parses as much of the head as is in the buffer. The request has to start at the buffer's position when this
+     * is first called after reset, and the bytes before the limit may not move until the request has been handled.
+     * @param buf buffer holding the request from its position up to its limit
+     * @return COMPLETE once the blank line ending the head has been read, INCOMPLETE if more bytes are needed,
+     * INVALID if the head is malformed or too large (see status)
+     */
+    public int parse(ByteBuffer buf) {
+        if (this.buf == null) {
+            this.buf = buf;
+            start = buf.position();
+            index = start;
+            lineStart = start;
+        }
+        int limit = buf.limit();
+        while (state != DONE) {
+            int eol = -1;
+            for (int i = index; i < limit; i++) {
+                if (buf.get(i) == '\n') {
+                    eol = i;
+                    break;
+                }
+            }
+            if (eol < 0) {
+                index = limit;
+                if (limit - start > maxHeaderBytes) return invalid(431);
+                return INCOMPLETE;
+            }
+            index = eol + 1;
+            if (index - start > maxHeaderBytes) return invalid(431);
+
+            int end = eol > lineStart && buf.get(eol - 1) == '\r' ? eol - 1 : eol; // Line without its CRLF or LF
+            if (state == REQUEST_LINE) {
+                if (end == lineStart) {
+                    if (!skipBlankLines) return invalid(400); //Request is just an empty line
+                    lineStart = index;
+                    start = index;
+                    continue;
+                }
+                requestLine(lineStart, end);
+                state = HEADER_LINE;
+            } else if (end == lineStart) {
+                state = DONE;
+                headEnd = index;
+            } else if (!headerLine(lineStart, end)) {
+                return invalid(431);
+            }
+            lineStart = index;
+        }
+        return COMPLETE;
+    }
+
+    /**
+     * For when the client stops sending before the blank line. A head that got as far as its request line is
+     * handled as if the blank line had arrived.
+     * @return COMPLETE or INVALID
+     */
+    public int endOfInput() {
+        if (state == DONE) return COMPLETE;
+        if (state == HEADER_LINE) {
+            state = DONE;
+            headEnd = buf.limit();
+            return COMPLETE;
+        }
+        return invalid(400);
+    }
+
+    private int invalid(int code) {
+        status = code;
+        return INVALID;
+    }
+
+    /**
+     * Splits the request line on single spaces
+     */
+    private void requestLine(int from, int to) {
+        int tokenBegin = from;
+        for (int i = from; i <= to; i++) {
+            if (i == to || buf.get(i) == ' ') {
+                if (tokens < 3) {
+                    tokenStart[tokens] = tokenBegin;
+                    tokenEnd[tokens] = i;
+                }
+                tokens++;
+                tokenBegin = i + 1;
+            }
+        }
+    }
+
+    /**
+     * Records the name and trimmed value of a header line. Lines without a colon are skipped.
+     * @return false when there are already as many headers as allowed
+     */
+    private boolean headerLine(int from, int to) {
+        int colon = -1;
+        for (int i = from; i < to; i++) {
+            if (buf.get(i) == ':') {
+                colon = i;
+                break;
+            }
+        }
+        if (colon <= from) return true;
+        if (headers == maxHeaders || headers == nameStart.length) return false;
+
+        int vs = colon + 1;
+        int ve = to;
+        while (vs < ve && (buf.get(vs) == ' ' || buf.get(vs) == '\t')) vs++;
+        while (ve > vs && (buf.get(ve - 1) == ' ' || buf.get(ve - 1) == '\t')) ve--;
+        nameStart[headers] = from;
+        nameEnd[headers] = colon;
+        valueStart[headers] = vs;
+        valueEnd[headers] = ve;
+        headers++;
+        return true;
+    }
+
+    /**
+     * @return status code to answer an INVALID head with
+     */
+    public int status() {
+        return status;
+    }
+
+    /**
+     * @return index just past the blank line ending the head, where any body starts
+     */
+    public int headEnd() {
+        return headEnd;
+    }
+
+    /**
+     * @return whether any bytes of the request line have arrived yet
+     */
+    public boolean started() {
+        return buf != null && (state != REQUEST_LINE || index > start);
+    }
+
+    /**
+     * @return number of space separated tokens on the request line
+     */
+    public int tokens() {
+        return tokens;
+    }
+
+    /**
+     * @return the method as one of the constants in this class, or null if it is not one we know
+     */
+    public String method() {
+        if (tokens == 0) return null;
+        for (String m : METHODS) {
+            if (equals(tokenStart[0], tokenEnd[0], m, false)) return m;
+        }
+        return null;
+    }
+
+    /**
+     * @return the request target, or null if the request line has none
+     */
+    public String target() {
+        return tokens < 2 ? null : string(tokenStart[1], tokenEnd[1]);
+    }
+
+    /**
+     * Compares the request target with a string without allocating
+     */
+    public boolean targetEquals(String s) {
+        return tokens >= 2 && equals(tokenStart[1], tokenEnd[1], s, false);
+    }
+
+    /**
+     * Checks how the request target starts without allocating
+     */
+    public boolean targetStartsWith(String prefix) {
+        return tokens >= 2 && tokenEnd[1] - tokenStart[1] >= prefix.length()
+                && equals(tokenStart[1], tokenStart[1] + prefix.length(), prefix, false);
+    }
+
+    /**
+     * @return the version as major * 10 + minor (10 for HTTP/1.0, 11 for HTTP/1.1), or -1 if the third token is
+     * missing or not of the form HTTP/d.d
+     */
+    public int version() {
+        if (tokens < 3) return -1;
+        int s = tokenStart[2];
+        if (tokenEnd[2] - s != 8 || !equals(s, s + 5, "HTTP/", false)) return -1;
+        byte major = buf.get(s + 5);
+        byte minor = buf.get(s + 7);
+        if (major < '0' || major > '9' || minor < '0' || minor > '9' || buf.get(s + 6) != '.') return -1;
+        return (major - '0') * 10 + (minor - '0');
+    }
+
+    /**
+     * @return the request line as a String
+     */
+    public String requestLine() {
+        return tokens == 0 ? "" : string(start, tokenEnd[Math.min(tokens, 3) - 1]);
+    }
+
+    /**
+     * Copies the request line into dst without allocating
+     * @return number of bytes copied, at most dst.length
+     */
+    public int copyRequestLine(byte[] dst) {
+        return tokens == 0 ? 0 : copy(start, tokenEnd[Math.min(tokens, 3) - 1], dst);
+    }
+
+    public int headerCount() {
+        return headers;
+    }
+
+    /**
+     * Finds a header without allocating
+     * @param name header name, matched ignoring case
+     * @return index of the first header with that name, or -1
+     */
+    public int find(String name) {
+        for (int i = 0; i < headers; i++) {
+            if (equals(nameStart[i], nameEnd[i], name, true)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the value of a header, or null if the request doesn't have it
+     */
+    public String header(String name) {
+        int i = find(name);
+        return i < 0 ? null : string(valueStart[i], valueEnd[i]);
+    }
+
+    /**
+     * @return the value of header i
+     */
+    public String value(int i) {
+        return string(valueStart[i], valueEnd[i]);
+    }
+
+    /**
+     * @return header i as it appeared in the request, "Name: value"
+     */
+    public String headerLine(int i) {
+        return string(nameStart[i], nameEnd[i]) + ": " + value(i);
+    }
+
+    /**
+     * Copies a header's value into dst without allocating
+     * @return number of bytes copied, at most dst.length, or -1 if the request doesn't have the header
+     */
+    public int copyValue(String name, byte[] dst) {
+        int i = find(name);
+        return i < 0 ? -1 : copy(valueStart[i], valueEnd[i], dst);
+    }
+
+    /**
+     * Reads a header as a non-negative number without allocating
+     * @return the number, -1 if the header is missing or not a number
+     */
+    public long longValue(String name) {
+        int i = find(name);
+        if (i < 0 || valueStart[i] == valueEnd[i] || valueEnd[i] - valueStart[i] > 18) return -1;
+        long n = 0;
+        for (int j = valueStart[i]; j < valueEnd[i]; j++) {
+            byte b = buf.get(j);
+            if (b < '0' || b > '9') return -1;
+            n = n * 10 + (b - '0');
+        }
+        return n;
+    }
+
+    /**
+     * Checks whether a header's value contains a token, ignoring case, without allocating
+     */
+    public boolean valueContains(String name, String token) {
+        int i = find(name);
+        if (i < 0) return false;
+        for (int j = valueStart[i]; j + token.length() <= valueEnd[i]; j++) {
+            if (equals(j, j + token.length(), token, true)) return true;
+        }
+        return false;
+    }
+
+    private boolean equals(int from, int to, String s, boolean ignoreCase) {
+        if (to - from != s.length()) return false;
+        for (int i = 0; i < s.length(); i++) {
+            int a = buf.get(from + i);
+            int b = s.charAt(i);
+            if (a != b && !(ignoreCase && (a | 0x20) == (b | 0x20) && Character.isLetter(b))) return false;
+        }
+        return true;
+    }
+
+    private int copy(int from, int to, byte[] dst) {
+        int n = Math.min(to - from, dst.length);
+        for (int i = 0; i < n; i++) {
+            dst[i] = buf.get(from + i);
+        }
+        return n;
+    }
+
+    private String string(int from, int to) {
+        byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buf.get(from + i);
+        }
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,350 @@
+import java.io.File;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * Response class to properly structure HTTP response messages
+ */
+class Response {
+
+    static final int MAX_RANGES = 16; // Range headers with more pieces than this are ignored
+
+    File source;
+
+    public Response(File source) {
+        this.source = source;
+    }
+
+    /**
+     * Gets the headers that only change when the file does, so they can be built once and cached
+     * @param length
+     * @param lastModified modification time of the file
+     * @return Content-Type through Vary headers in string format
+     */
+    public String getEntityHeaders(long length, long lastModified) {
+        StringBuilder s = new StringBuilder();
+        String etag = FileMetadata.etag(lastModified, length);
+        s.append("Content-Type: " + getMimeType(source.getAbsolutePath()) + "\r\n");
+        s.append("Content-Length: " + length + "\r\n");
+        s.append("Last-Modified: " + convertDateFormat(lastModified) + "\r\n");
+        if (etag != null) s.append("ETag: " + etag + "\r\n");
+        s.append("Content-Encoding: " + "identity\r\n");
+        s.append("Allow: GET, POST, HEAD\r\n");
+        s.append("Accept-Ranges: bytes\r\n");
+        if (Compression.varies(getMimeType(source.getPath()))) s.append("Vary: Accept-Encoding\r\n");
+
+        return s.toString();
+    }
+
+    /**
+     * Gets the entity headers of a compressed variant
+     * @param contentType type of the uncompressed file
+     * @param length length of the compressed body
+     * @param lastModified modification time of the file
+     * @param encoding gzip or deflate
+     * @param etag tag of the uncompressed file, null when ETags are off
+     * @return Content-Type through Vary headers in string format
+     */
+    public static String getEncodedHeaders(String contentType, long length, long lastModified, String encoding, String etag) {
+        StringBuilder s = new StringBuilder();
+        s.append("Content-Type: " + contentType + "\r\n");
+        s.append("Content-Length: " + length + "\r\n");
+        s.append("Last-Modified: " + convertDateFormat(lastModified) + "\r\n");
+        if (etag != null) s.append("ETag: " + FileMetadata.etag(etag, encoding) + "\r\n");
+        s.append("Content-Encoding: " + encoding + "\r\n");
+        s.append("Allow: GET, POST, HEAD\r\n");
+        s.append("Vary: Accept-Encoding\r\n");
+
+        return s.toString();
+    }
+
+    /**
+     * Adds the status line and the per response caching headers around prebuilt entity headers
+     * @param entityHeaders headers from getEntityHeaders
+     * @param target request target, picks the Cache-Control policy
+     * @return response headers in string format
+     */
+    public static String getResponseHeaders(String entityHeaders, String target) {
+        StringBuilder s = new StringBuilder();
+        s.append("HTTP/1.0 200 OK\r\n");
+        s.append(entityHeaders);
+        s.append(getCachingHeaders(target));
+
+        return s.toString();
+    }
+
+    /**
+     * Gets the headers of a 304 Not Modified response
+     * @param etag tag the client's copy has, null when ETags are off
+     * @param target request target, picks the Cache-Control policy
+     * @return response headers in string format
+     */
+    public static String getNotModifiedHeaders(String etag, String target) {
+        StringBuilder s = new StringBuilder();
+        s.append("HTTP/1.0 304 Not Modified\r\n");
+        if (etag != null) s.append("ETag: " + etag + "\r\n");
+        s.append(getCachingHeaders(target));
+
+        return s.toString();
+    }
+
+    /**
+     * Gets the Cache-Control and Expires headers the policy for a target asks for. Without a policy only the
+     * usual Expires is sent.
+     * @param target request target
+     * @return caching headers in string format
+     */
+    public static String getCachingHeaders(String target) {
+        FileMetadata.Policy policy = FileMetadata.policy(target);
+        long now = System.currentTimeMillis();
+        if (policy == null) return "Expires: " + convertDateFormat(now + 10000000) + "\r\n";
+
+        StringBuilder s = new StringBuilder();
+        s.append("Cache-Control: " + policy.cacheControl + "\r\n");
+        if (policy.maxAge >= 0) {
+            s.append("Expires: " + convertDateFormat(now + policy.maxAge * 1000) + "\r\n");
+        } else if (policy.noCache) {
+            s.append("Expires: " + convertDateFormat(0) + "\r\n"); //Already expired
+        }
+
+        return s.toString();
+    }
+
+    /**
+     * Gets the headers for the output of a CGI script, without the framing headers
+     * @param status status code and reason phrase
+     * @param contentType type of the output
+     * @return response headers in string format
+     */
+    public static String getCgiHeaders(String status, String contentType) {
+        StringBuilder s = new StringBuilder();
+        s.append("HTTP/1.0 " + status + "\r\n");
+        s.append("Content-Type: " + contentType + "\r\n");
+        s.append("Allow: GET, POST, HEAD\r\n");
+        s.append("Expires: " + convertDateFormat(System.currentTimeMillis() + 10000000) + "\r\n");
+
+        return s.toString();
+    }
+
+    /**
+     * Gets the headers for a body the server makes itself, which must not be cached
+     * @param contentType type of the body
+     * @param length length of the body
+     * @return response headers in string format
+     */
+    public static String getGeneratedHeaders(String contentType, long length) {
+        StringBuilder s = new StringBuilder();
+        s.append("HTTP/1.0 200 OK\r\n");
+        s.append("Content-Type: " + contentType + "\r\n");
+        s.append("Content-Length: " + length + "\r\n");
+        s.append("Cache-Control: no-store\r\n");
+
+        return s.toString();
+    }
+
+    /**
+     * Gets the headers of a 206 Partial Content response
+     * @param contentType type of the part, or multipart/byteranges for several parts
+     * @param length number of body bytes that follow
+     * @param contentRange value of the Content-Range header, null for multipart responses
+     * @param lastModified modification time of the file
+     * @param etag tag of the file, null when ETags are off
+     * @param target request target, picks the Cache-Control policy
+     * @return response headers in string format
+     */
+    public static String getPartialHeaders(String contentType, long length, String contentRange, long lastModified,
+                                           String etag, String target) {
+        StringBuilder s = new StringBuilder();
+        s.append("HTTP/1.0 206 Partial Content\r\n");
+        s.append("Content-Type: " + contentType + "\r\n");
+        s.append("Content-Length: " + length + "\r\n");
+        if (contentRange != null) s.append("Content-Range: " + contentRange + "\r\n");
+        s.append("Last-Modified: " + convertDateFormat(lastModified) + "\r\n");
+        if (etag != null) s.append("ETag: " + etag + "\r\n");
+        s.append("Content-Encoding: " + "identity\r\n");
+        s.append("Allow: GET, POST, HEAD\r\n");
+        s.append("Accept-Ranges: bytes\r\n");
+        if (Compression.varies(contentType)) s.append("Vary: Accept-Encoding\r\n");
+        s.append(getCachingHeaders(target));
+
+        return s.toString();
+    }
+
+    /**
+     * Parses a "Range: bytes=" header into inclusive first/last byte pairs, clamped to the file length
+     * @param header value of the Range header
+     * @param length length of the file
+     * @return the ranges, an empty list if none of them are inside the file, or null if the header is malformed
+     * and should be ignored
+     */
+    public static List<long[]> parseRanges(String header, long length) {
+        if (!header.startsWith("bytes=")) return null;
+        String[] specs = header.substring(6).split(",");
+        if (specs.length > MAX_RANGES) return null; //Too many pieces, just send the whole file
+
+        List<long[]> ranges = new ArrayList<long[]>();
+        try {
+            for (String spec : specs) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                if (dash < 0) return null;
+                long first;
+                long last;
+                if (dash == 0) { //Suffix range, the last n bytes
+                    long n = Long.parseLong(spec.substring(1));
+                    if (n <= 0) continue;
+                    first = Math.max(0, length - n);
+                    last = length - 1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    last = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1)); //Open ended runs to the end
+                    if (last < first) return null;
+                    last = Math.min(last, length - 1);
+                }
+                if (first >= length) continue; //Starts past the end, can't be satisfied
+                ranges.add(new long[] {first, last});
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return ranges;
+    }
+
+    /**
+     * Finds file extension from source and returns with corresponding mime type
+     * @param source Source file path
+     * @return the mime type
+     */
+    public static String getMimeType(String source) {
+        String extension = source.substring(source.lastIndexOf(".") + 1);
+
+        String mime = "";
+        switch (extension) {
+            case "txt":
+                mime = "text/plain";
+                break;
+            case "html":
+                mime = "text/html";
+                break;
+            case "gif":
+                mime = "image/gif";
+                break;
+            case "jpeg":
+                mime = "image/jpeg";
+                break;
+            case "png":
+                mime = "image/png";
+                break;
+            case "pdf":
+                mime = "application/pdf";
+                break;
+            case "x-gzip":
+                mime = "application/x-gzip";
+                break;
+            case "zip":
+                mime = "application/zip";
+                break;
+            default:
+                mime = "application/octet-stream";
+        }
+
+        return mime;
+    }
+
+    /**
+     * Takes error code as input and returns correspoding error message
+     * @param statusCode http error code
+     * @return error message string
+     */
+    public static String getErrorMessage(int statusCode) {
+        String output = "";
+        switch (statusCode) {
+            case 204:
+                output = "HTTP/1.0 " + statusCode + " No Content";
+                break;
+            case 304:
+                output = "HTTP/1.0 " + statusCode + " Not Modified" + "\r\n" + "Expires: " + convertDateFormat(System.currentTimeMillis() + 10000000);
+                break;
+            case 400:
+                output = "HTTP/1.0 " + statusCode + " Bad Request";
+                break;
+            case 403:
+                output = "HTTP/1.0 " + statusCode + " Forbidden";
+                break;
+            case 404:
+                output = "HTTP/1.0 " + statusCode + " Not Found";
+                break;
+            case 405:
+                output = "HTTP/1.0 " + statusCode + " Method Not Allowed";
+                break;
+            case 408:
+                output = "HTTP/1.0 " + statusCode + " Request Timeout";
+                break;
+            case 411:
+                output = "HTTP/1.0 " + statusCode + " Length Required";
+                break;
+            case 500:
+                output = "HTTP/1.0 " + statusCode + " Internal Service Error";
+                break;
+            case 413:
+                output = "HTTP/1.0 " + statusCode + " Payload Too Large";
+                break;
+            case 431:
+                output = "HTTP/1.0 " + statusCode + " Request Header Fields Too Large";
+                break;
+            case 501:
+                output = "HTTP/1.0 " + statusCode + " Not Implemented";
+                break;
+            case 503:
+                output = "HTTP/1.0 " + statusCode + " Service Unavailable";
+                break;
+            case 416:
+                output = "HTTP/1.0 " + statusCode + " Range Not Satisfiable";
+                break;
+            case 504:
+                output = "HTTP/1.0 " + statusCode + " Gateway Timeout";
+                break;
+            case 505:
+                output = "HTTP/1.0 " + statusCode + " HTTP Version Not Supported";
+                break;
+        }
+        return output;
+    }
+
+    /**
+     * Takes time in long and converts it to http date format
+     * @param time date in long format
+     * @return date in HTTP date format
+     */
+    public static String convertDateFormat(long time) {
+        Date date = new Date(time);
+        SimpleDateFormat httpFormatter = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z");
+        httpFormatter.setTimeZone(TimeZone.getTimeZone("GMT"));
+        String httpDate = httpFormatter.format(date);
+
+        return httpDate;
+    }
+
+    /**
+     * Converts dateFormat back to long
+     * @param time date in long format
+     * @return date in long format or 0 if cannot be parsed
+     */
+    public static long convertToLong(String date) {
+        SimpleDateFormat httpFormatter = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z");
+        httpFormatter.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+        Date dateObj;
+        long inLong;
+        try {
+            dateObj = httpFormatter.parse(date);
+            inLong = dateObj.getTime();
+        } catch (ParseException e) {
+            inLong = 0;
+        }
+
+        return inLong;
+    }
+
+}
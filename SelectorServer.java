@@ -0,0 +1,280 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking front end for the server. Connections are accepted on a ServerSocketChannel and spread over a
+ * number of Selector event loops, which read the request head without holding a thread per socket. Only once a
+ * full head has arrived is the connection put back in blocking mode and handed to a SocketHandler on the worker pool.
+ * Each waiting connection is a timeout on TimerWheel.shared, so deadlines cost nothing per select however many
+ * connections are open.
+ */
+public class SelectorServer {
+
+    private ServerSocketChannel server; // Listening channel
+    private EventLoop[] loops; // Event loops connections are spread across
+    private AdmissionController workers; // Worker group that runs the SocketHandlers
+    private AtomicInteger nextLoop = new AtomicInteger(); // Round robin position for connections coming back from handlers
+
+    public SelectorServer(ServerSocketChannel server, int loopCount, AdmissionController workers) throws IOException {
+        this.workers = workers;
+        this.server = server;
+        loops = new EventLoop[Math.max(1, loopCount)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop();
+        }
+    }
+
+    /**
+     * Starts the event loops and then accepts connections on the calling thread, handing them out round robin
+     */
+    public void start() {
+        for (int i = 0; i < loops.length; i++) {
+            Thread t = new Thread(loops[i], "event-loop-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+
+        int next = 0;
+        while (true) {
+            try {
+                SocketChannel ch = server.accept(); //connects with a client
+                Listener.accepted(ch.socket());
+                loops[next].register(new Connection(ch, 0, false));
+                next = (next + 1) % loops.length;
+            } catch (IOException e) {
+
+            }
+        }
+    }
+
+    /**
+     * Called by a SocketHandler when a persistent connection has nothing left to read, so it waits for its next
+     * request on an event loop instead of on a worker thread
+     * @param ch the connection
+     * @param served requests already answered on it
+     */
+    public void resume(SocketChannel ch, int served) {
+        int i = Math.floorMod(nextLoop.getAndIncrement(), loops.length);
+        loops[i].register(new Connection(ch, served, true));
+    }
+
+    /**
+     * Read state of a connection whose request head has not fully arrived yet, and its deadline for the head, or
+     * for the next request to start if it is idle
+     */
+    private static class Connection extends TimerWheel.Timeout {
+        SocketChannel ch;
+        byte[] head = new byte[512]; // Bytes read so far
+        int length; // Number of valid bytes in head
+        int scanned; // Where the search for the blank line should resume
+        int served; // Requests already answered on this connection
+        boolean idle; // Persistent connection waiting for its next request, nothing read yet
+        EventLoop loop; // Loop the connection is registered with
+
+        Connection(SocketChannel ch, int served, boolean idle) {
+            this.ch = ch;
+            this.served = served;
+            this.idle = idle;
+        }
+
+        protected void expired() {
+            loop.expired(this); //Only the loop's own thread may touch its keys
+        }
+    }
+
+    /**
+     * A single selector thread. Reads request heads from all of its connections and dispatches finished ones.
+     */
+    private class EventLoop implements Runnable {
+
+        private Selector selector;
+        private Queue<Connection> pending = new ConcurrentLinkedQueue<Connection>(); // Connections waiting to be registered
+        private ByteBuffer readBuffer = ByteBuffer.allocateDirect(8192); // Shared by every connection on this loop
+        private List<Connection> ready = new ArrayList<Connection>(); // Connections with a full head this round
+        private Queue<Connection> expired = new ConcurrentLinkedQueue<Connection>(); // Connections whose deadline ran out
+
+        EventLoop() throws IOException {
+            selector = Selector.open();
+        }
+
+        /**
+         * Called from other threads, queues the channel and wakes the selector so it gets registered
+         */
+        void register(Connection c) {
+            pending.add(c);
+            selector.wakeup();
+        }
+
+        /**
+         * Called by the timer wheel, queues the connection and wakes the selector so it gets timed out
+         */
+        void expired(Connection c) {
+            expired.add(c);
+            selector.wakeup();
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    registerPending();
+                    expire();
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (key.isValid() && key.isReadable()) {
+                            read(key);
+                        }
+                    }
+
+                    if (!ready.isEmpty()) {
+                        selector.selectNow(); //Flush the cancelled keys so the channels can go back to blocking mode
+                        for (Connection c : ready) {
+                            dispatch(c);
+                        }
+                        ready.clear();
+                    }
+                } catch (IOException e) {
+
+                }
+            }
+        }
+
+        private void registerPending() {
+            Connection c;
+            while ((c = pending.poll()) != null) {
+                try {
+                    c.ch.configureBlocking(false);
+                    c.ch.register(selector, SelectionKey.OP_READ, c);
+                    c.loop = this;
+                    TimerWheel.shared.schedule(c, c.idle ? SocketHandler.keepAliveTimeout : SocketHandler.headerTimeout);
+                } catch (IOException e) {
+                    close(c.ch);
+                }
+            }
+        }
+
+        /**
+         * Reads whatever is available and checks whether the request head is complete
+         */
+        private void read(SelectionKey key) {
+            SocketChannel ch = (SocketChannel) key.channel();
+            Connection c = (Connection) key.attachment();
+            int n;
+            try {
+                readBuffer.clear();
+                n = ch.read(readBuffer);
+            } catch (IOException e) {
+                n = -1;
+            }
+            if (n < 0) { //Client closed before sending a full request
+                key.cancel();
+                TimerWheel.shared.cancel(c);
+                close(ch);
+                return;
+            }
+            if (n == 0) return;
+            if (c.idle) { //Next request has started, the clock now runs on its head
+                c.idle = false;
+                TimerWheel.shared.schedule(c, SocketHandler.headerTimeout);
+            }
+
+            if (c.length + n > c.head.length) {
+                c.head = Arrays.copyOf(c.head, Math.max(c.head.length * 2, c.length + n));
+            }
+            readBuffer.flip();
+            readBuffer.get(c.head, c.length, n);
+            c.length += n;
+
+            if (headComplete(c)) {
+                key.cancel();
+                TimerWheel.shared.cancel(c);
+                ready.add(c);
+            } else if (c.length > RequestParser.maxHeaderBytes) {
+                key.cancel();
+                TimerWheel.shared.cancel(c);
+                reply(ch, Response.getErrorMessage(431)); //Head too large, send 431
+            }
+        }
+
+        /**
+         * Sends 408 to connections that have not finished their request head in time and closes idle
+         * persistent connections
+         */
+        private void expire() {
+            Connection c;
+            while ((c = expired.poll()) != null) {
+                SelectionKey key = c.ch.keyFor(selector);
+                if (key == null || !key.isValid() || key.attachment() != c) continue; //Finished or closed meanwhile
+                if (TimerWheel.shared.isPending(c)) continue; //Re-armed for the next request's head since it expired
+                key.cancel();
+                if (c.idle) {
+                    SocketHandler.timeouts[SocketHandler.IDLE_TIMEOUT].increment();
+                    close(c.ch);
+                } else {
+                    SocketHandler.timeouts[SocketHandler.HEADER_TIMEOUT].increment();
+                    reply(c.ch, Response.getErrorMessage(408));
+                }
+            }
+        }
+    }
+
+    /**
+     * Looks for the blank line ending the head, picking up where the last search stopped
+     * @return true once the blank line has been seen
+     */
+    static boolean headComplete(Connection c) {
+        for (int i = Math.max(c.scanned, 1); i < c.length; i++) {
+            if (c.head[i] != '\n') continue;
+            if (c.head[i - 1] == '\n') return true; // \n\n
+            if (i >= 3 && c.head[i - 1] == '\r' && c.head[i - 2] == '\n' && c.head[i - 3] == '\r') return true; // \r\n\r\n
+        }
+        c.scanned = c.length;
+        return false;
+    }
+
+    /**
+     * Puts the channel back in blocking mode and runs a SocketHandler for it on the worker pool
+     */
+    private void dispatch(Connection c) {
+        SocketChannel ch = c.ch;
+        try {
+            ch.configureBlocking(true);
+            workers.execute(new SocketHandler(ch.socket(), Arrays.copyOf(c.head, c.length), this, c.served));
+            if (Metrics.shared != null) Metrics.shared.accepted();
+        } catch (RejectedExecutionException e) { //All workers busy, send 503
+            if (Metrics.shared != null) Metrics.shared.rejected();
+            workers.reject(ch.socket(), "queue full");
+        } catch (IOException e) {
+            close(ch);
+        }
+    }
+
+    /**
+     * Writes a short response and closes the channel. Error messages are small enough to fit in the socket buffer.
+     */
+    static void reply(SocketChannel ch, String message) {
+        try {
+            ch.write(ByteBuffer.wrap(message.getBytes()));
+        } catch (IOException e) {
+            close(ch);
+            return;
+        }
+        GracefulClose.close(ch.socket());
+    }
+
+    static void close(SocketChannel ch) {
+        try {
+            ch.close();
+        } catch (IOException e) {
+
+        }
+    }
+}
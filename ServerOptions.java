@@ -0,0 +1,51 @@
+import java.util.*;
+
+/**
+ * Holds the optional startup flags passed after the port number, written as --name=value (or just --name for true)
+ */
+public class ServerOptions {
+
+    private Map<String, String> values = new HashMap<String, String>();
+
+    public ServerOptions(String[] args, int start) {
+        for (int i = start; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("--")) continue; //Ignore anything that isn't a flag
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                values.put(arg.substring(2), "true");
+            } else {
+                values.put(arg.substring(2, eq), arg.substring(eq + 1));
+            }
+        }
+    }
+
+    /**
+     * Gets the value of a flag
+     * @param name flag name without the leading dashes
+     * @param def value to use when the flag was not given
+     * @return the flag value
+     */
+    public String get(String name, String def) {
+        String value = values.get(name);
+        return value == null ? def : value;
+    }
+
+    /**
+     * Gets the value of a numeric flag, falling back to the default when it is missing or not a number
+     */
+    public int getInt(String name, int def) {
+        try {
+            return Integer.parseInt(get(name, Integer.toString(def)));
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    /**
+     * Gets the value of a true/false flag
+     */
+    public boolean getBoolean(String name, boolean def) {
+        return Boolean.parseBoolean(get(name, Boolean.toString(def)));
+    }
+}
@@ -7,69 +7,380 @@
 
 import java.io.*;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
 import java.net.*;
-import java.nio.file.Files;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
 
 public class SocketHandler implements Runnable {
 
+    static int keepAliveTimeout = 5000; // Milliseconds a persistent connection may sit idle between requests
+    static int headerTimeout = 5000; // Milliseconds a request head may take to arrive, however slowly it trickles in
+    static int bodyTimeout = 30000; // Milliseconds a request body may take to arrive
+    static int writeTimeout = 30000; // Milliseconds a response may go without the client taking any of it
+    static int maxRequests = 100; // Requests served on one connection before it is closed
+    static final int MAX_BODY = 1 << 20; // Largest request body read into memory
+    static final int CGI_BUFFER = 8192; // Script output is passed on through a buffer this size
+
     private Socket s; // Socket passed to the current thread
-    private BufferedReader req; // Used to read incoming HTTP request
-    private BufferedOutputStream resp; // Output stream for response
-    private String ifModified;
-    private ArrayList<String> request;
+    private InputStream req; // Used to read incoming HTTP request
+    private BufferPool.Output resp; // Output stream for response, assembled in a pooled direct buffer
+    private ByteBuffer buffer; // Request bytes read so far, reused for every request on the connection
+    private RequestParser parser = new RequestParser(); // Parses the head in place in buffer
+    private byte[] body; // Body of the current request, null if it has none
+    private byte[] head; // Request bytes already read by the selector front end, if any
+    private SelectorServer front; // Selector front end to give idle connections back to, null in blocking mode
+    private int served; // Requests already answered on this connection
+    private boolean http11; // Current request is HTTP/1.1
+    private boolean keepAlive; // Leave the connection open after the current response
+    private int status; // Status code of the last response head written, for Metrics and AccessLog
+    private long sent; // Body bytes sent for the current request, for AccessLog
+    private byte[] remote; // Client address for AccessLog
+    private Deadline deadline; // Times whatever the connection is waiting on, null for in-memory sockets
+
+    static final int CLOSED = -1; // readRequest result when the client closed the connection before a new request
+    static final int HTTP2 = -2; // readRequest result when the connection starts with the HTTP/2 preface
+
+    // What a connection's deadline is timing
+    static final int NONE = -1, HEADER_TIMEOUT = 0, BODY_TIMEOUT = 1, IDLE_TIMEOUT = 2, WRITE_TIMEOUT = 3;
+    static final String[] TIMEOUT_KINDS = {"header", "body", "idle", "write"}; // Metrics labels, by kind
+    static final LongAdder[] timeouts = {new LongAdder(), new LongAdder(), new LongAdder(), new LongAdder()}; // Deadlines hit, by kind
+
+    /**
+     * The one deadline a connection has running, on TimerWheel.shared. It is re-armed whenever the connection
+     * moves on to waiting for something else, so a client gets a fixed time for the whole request head rather
+     * than per read, and a client that trickles a byte now and then can't hold a worker forever. A read deadline
+     * shuts the socket's input down, which wakes the blocked read with end of stream, and a write deadline
+     * closes the socket unless some of the response went out since it was armed.
+     */
+    private class Deadline extends TimerWheel.Timeout {
+        volatile int kind = NONE; // What is being timed
+        volatile int fired = NONE; // What ran out, checked by the handler once its read or write fails
+        private long progress; // Response bytes written when the write deadline was last armed
+
+        void arm(int kind) {
+            if (this.kind == kind) return; //Still the same wait, the clock keeps running
+            synchronized (this) { //Expiries run holding the same monitor, so one never sees half a change
+                this.kind = kind;
+                if (kind == WRITE_TIMEOUT) progress = resp.written();
+                TimerWheel.shared.schedule(this, millis(kind));
+            }
+        }
+
+        void disarm() {
+            if (kind == NONE) return;
+            synchronized (this) {
+                kind = NONE;
+                TimerWheel.shared.cancel(this);
+            }
+        }
+
+        protected void expired() {
+            int k = kind;
+            if (k == WRITE_TIMEOUT && resp.written() != progress) { //Slow reader, but reading
+                progress = resp.written();
+                TimerWheel.shared.schedule(this, writeTimeout);
+                return;
+            }
+            fired = k;
+            timeouts[k].increment();
+            try {
+                if (k == WRITE_TIMEOUT) { //Nothing else unblocks the write
+                    s.setSoLinger(true, 0); //Reset, rather than leave the unread response queued in the kernel
+                    s.close();
+                } else {
+                    s.shutdownInput();
+                }
+            } catch (IOException e) {
+
+            }
+        }
+
+        private int millis(int kind) {
+            switch (kind) {
+                case HEADER_TIMEOUT: return headerTimeout;
+                case BODY_TIMEOUT: return bodyTimeout;
+                case IDLE_TIMEOUT: return keepAliveTimeout;
+                default: return writeTimeout;
+            }
+        }
+    }
 
     public SocketHandler(Socket s) {
         this.s = s;
     }
 
+    /**
+     * Creates a handler for a connection whose request head has already been read off the socket
+     * @param s The client socket, in blocking mode
+     * @param head The bytes read so far, which are parsed before anything more is read from the socket
+     * @param front The selector front end the connection is handed back to when it goes idle
+     * @param served Requests already answered on this connection
+     */
+    public SocketHandler(Socket s, byte[] head, SelectorServer front, int served) {
+        this.s = s;
+        this.head = head;
+        this.front = front;
+        this.served = served;
+    }
+
+    /**
+     * Reads the keep-alive and timeout settings from the startup options
+     */
+    public static void configure(ServerOptions options) {
+        keepAliveTimeout = options.getInt("keep-alive-timeout", 5000);
+        headerTimeout = options.getInt("header-timeout", 5000);
+        bodyTimeout = options.getInt("body-timeout", 30000);
+        writeTimeout = options.getInt("write-timeout", 30000);
+        maxRequests = options.getInt("max-requests", 100);
+    }
+
     public void run() {
+        Metrics metrics = Metrics.shared;
+        AccessLog log = AccessLog.shared;
+        AdmissionController admission = AdmissionController.current();
+        if (metrics != null) metrics.connectionStarted();
+        if (log != null) remote = s.getInetAddress().getHostAddress().getBytes(); //Once per connection, not per request
         try {
-            s.setSoTimeout(5000); //Set timeout to 5 seconds
-            req = new BufferedReader(new InputStreamReader(s.getInputStream())); // Setup up reader to read in request
-            resp = new BufferedOutputStream(s.getOutputStream()); // Setup output stream of socket for responses
+            if (s.isConnected()) deadline = new Deadline(); //Replayed HTTP/2 streams and benchmarks read from memory
+            req = s.getInputStream(); // Request bytes are read straight into buffer, no reader or decoding
+            resp = new BufferPool.Output(BufferPool.shared, s); // Setup output stream of socket for responses
+            int size = Math.max(RequestParser.maxHeaderBytes, head == null ? 0 : head.length);
+            buffer = ByteBuffer.allocate(size);
+            if (head != null) {
+                buffer.put(head); // Start from what the front end already read
+            }
+            buffer.flip();
+
+            while (true) {
+                int result = readRequest();
+                if (result == CLOSED) { //Client closed a persistent connection
+                    closeStreams();
+                    return;
+                } else if (result == HTTP2) { //Prior knowledge, the rest of the connection is HTTP/2
+                    serveHttp2(null, null);
+                    return;
+                } else if (result != 0) { //Head was malformed, too large or too slow
+                    keepAlive = false;
+                    arm(WRITE_TIMEOUT);
+                    write(Response.getErrorMessage(result));
+                    if (metrics != null) metrics.record(parser.method(), null, result, 0);
+                    if (log != null) log.log(remote, parser, result, 0, 0);
+                    return;
+                }
 
-            String first = req.readLine();
-            ifModified = req.readLine();
-            request = new ArrayList<String>();
-            request.add(first);
-            request.add(ifModified);
-            while(req.ready()){request.add(req.readLine());}
+                if (http11 && Http2Connection.enabled && parser.valueContains("Upgrade", "h2c")
+                        && header("HTTP2-Settings") != null) { //Answered as stream 1 of an HTTP/2 connection
+                    serveHttp2(upgradedRequest(), header("HTTP2-Settings"));
+                    return;
+                }
 
-            parseRequest(first);
+                long start = System.nanoTime();
+                sent = 0;
+                arm(WRITE_TIMEOUT); //Stays armed until the next read, which flushes first
+                HttpEvents.ResponseWritten event = new HttpEvents.ResponseWritten();
+                event.begin();
+                parseRequest();
+                long elapsed = System.nanoTime() - start;
+                event.end();
+                if (event.shouldCommit()) {
+                    event.method = parser.method();
+                    event.target = parser.target();
+                    event.status = status;
+                    event.bytes = sent;
+                    event.keepAlive = keepAlive;
+                    event.commit();
+                }
+                if (metrics != null) metrics.record(parser.method(), parser, status, elapsed);
+                if (log != null) log.log(remote, parser, status, sent, elapsed);
+                if (admission != null) admission.sample(elapsed);
+                served++;
+                if (!keepAlive) return; //Response already closed the connection
+
+                if (front != null && !buffer.hasRemaining()) { //Nothing pipelined, give the idle connection back to the event loop
+                    resp.flush();
+                    disarm();
+                    front.resume(s.getChannel(), served);
+                    return;
+                }
+            }
 
-        } catch (SocketTimeoutException e) {
-            write(Response.getErrorMessage(408)); //Catch timeout exception after 5 seconds and send 408 timeout error response
+        } catch (SocketTimeoutException e) { //Body didn't arrive in time
+            keepAlive = false;
+            arm(WRITE_TIMEOUT);
+            write(Response.getErrorMessage(408));
         } catch (IOException e) {
             closeStreams();
+        } finally {
+            disarm();
+            if (resp != null) resp.release();
+            if (metrics != null) metrics.connectionEnded();
         }
     }
 
     /**
-     * This method parses incoming request and responds with the appropriate error message. If passed without errors gets handed to the appropriate command method
-     * @param request The request string
+     * @return the connection this handler serves
      */
-    public void parseRequest(String request) {
+    Socket socket() {
+        return s;
+    }
 
-        //If request is just empty lines send bad request
-        if (request == null || request.trim().isEmpty()) {
-            write(Response.getErrorMessage(400));
-            closeStreams();
-            return;
+    /**
+     * Reads and parses the next request head, then its body. Stops right after the body so any pipelined requests
+     * behind it stay in the buffer.
+     * @return 0 when a request was read, CLOSED if the client closed the connection first, otherwise the error
+     * status to answer with
+     */
+    private int readRequest() throws IOException {
+        parser.reset(served > 0); //Stray blank lines are allowed between pipelined requests
+        body = null;
+        buffer.compact(); //Move any pipelined bytes to the front so the head starts at index 0
+        buffer.flip();
+        HttpEvents.RequestParsed event = new HttpEvents.RequestParsed();
+        event.begin();
+
+        int result;
+        while ((result = parser.parse(buffer)) == RequestParser.INCOMPLETE) {
+            if (buffer.limit() == buffer.capacity()) return 431; //Head doesn't fit in the buffer
+            boolean idle = !parser.started() && buffer.remaining() == 0;
+            int n = fill();
+            if (idle) event.begin(); //Time from the first byte, not from the end of the last request
+            if (n < 0) { //Client stopped sending, or its deadline shut the input
+                if (timedOut() && (served == 0 || parser.started())) return 408; //Idle connections are just closed
+                if (!parser.started()) return served > 0 ? CLOSED : 400;
+                result = parser.endOfInput();
+                break;
+            }
         }
-        String[] firstLine = request.split(" ");
+        if (result == RequestParser.INVALID) return parser.status();
+        buffer.position(parser.headEnd());
+        if (Http2Connection.enabled && Http2Connection.isPreface(parser)) return HTTP2; //No body, frames follow
 
-        if (firstLine.length == 0) {
-            write(Response.getErrorMessage(400)); // Bad request NULL request
-            return;
+        http11 = parser.version() == 11;
+        keepAlive = http11 && !parser.valueContains("Connection", "close") && served + 1 < maxRequests;
+
+        if (parser.find("Transfer-Encoding") >= 0) { //Chunked bodies aren't read, their data would be taken for the next request
+            keepAlive = false;
+            return 501;
+        }
+        long contentLength = parser.longValue("Content-Length");
+        if (contentLength < 0 && parser.find("Content-Length") >= 0) { //Malformed, no telling where the body ends
+            keepAlive = false;
+            return 400;
+        } else if (contentLength > MAX_BODY) { //Never read, so the connection can't be used again
+            keepAlive = false;
+            return 413;
+        }
+        if (contentLength > 0) { //Read exactly the body so the next request stays intact
+            body = readBody((int) contentLength);
+        } else if (contentLength < 0 && !keepAlive) { //No length given, take whatever has already arrived
+            int available = buffer.remaining() + req.available();
+            if (available > 0) body = readBody(available);
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.method = parser.method();
+            event.target = parser.target();
+            event.headBytes = parser.headEnd();
+            event.bodyBytes = body == null ? 0 : body.length;
+            event.commit();
+        }
+        return 0;
+    }
+
+    /**
+     * Reads more bytes from the socket onto the end of the buffer
+     * @return number of bytes read, -1 at end of stream
+     */
+    private int fill() throws IOException {
+        resp.flush(); //About to wait for the client, send the responses that are ready first
+        arm(served > 0 && !parser.started() ? IDLE_TIMEOUT : HEADER_TIMEOUT); //Idle wait, or the clock on the whole head
+        int limit = buffer.limit();
+        int n = req.read(buffer.array(), limit, buffer.capacity() - limit);
+        if (n > 0) buffer.limit(limit + n);
+        return n;
+    }
+
+    /**
+     * Takes the body from the buffer first and reads the rest from the socket
+     */
+    private byte[] readBody(int length) throws IOException {
+        byte[] data = new byte[length];
+        int read = Math.min(length, buffer.remaining());
+        buffer.get(data, 0, read);
+        if (read < length) arm(BODY_TIMEOUT);
+        while (read < length) {
+            int n = req.read(data, read, length - read);
+            if (n < 0) {
+                if (timedOut()) throw new SocketTimeoutException("Request body timed out");
+                return Arrays.copyOf(data, read);
+            }
+            read += n;
         }
+        return data;
+    }
+
+    private void arm(int kind) {
+        if (deadline != null) deadline.arm(kind);
+    }
 
-        String command = firstLine[0];
-        if (command.equals("GET") || command.equals("POST") || command.equals("HEAD")) {
+    private void disarm() {
+        if (deadline != null) deadline.disarm();
+    }
+
+    /**
+     * @return true if a deadline ran out and cut the connection's input off
+     */
+    private boolean timedOut() {
+        return deadline != null && deadline.fired != NONE;
+    }
+
+    /**
+     * Hands the connection over to HTTP/2 for the rest of its life, served on this thread
+     * @param upgraded the HTTP/1.1 request that asked for the upgrade, answered as stream 1, or null with prior
+     * knowledge
+     * @param settings the request's HTTP2-Settings header
+     */
+    private void serveHttp2(byte[] upgraded, String settings) throws IOException {
+        keepAlive = false;
+        disarm(); //HTTP/2 keeps its own time, with a write deadline per connection
+        if (upgraded != null) resp.print("HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n");
+        resp.flush();
+        byte[] rest = new byte[buffer.remaining()]; //Whatever the client sent after the head, the preface at least
+        buffer.get(rest);
+        new Http2Connection(s, rest, upgraded, settings).serve();
+    }
+
+    /**
+     * Rebuilds the current request without the headers that asked for the upgrade, for stream 1
+     */
+    private byte[] upgradedRequest() {
+        StringBuilder sb = new StringBuilder(parser.requestLine()).append("\r\n");
+        for (int i = 0; i < parser.headerCount(); i++) {
+            String line = parser.headerLine(i);
+            if (!Http2Connection.isConnectionHeader(line.substring(0, line.indexOf(':')))) sb.append(line).append("\r\n");
+        }
+        sb.append("\r\n");
+        byte[] head = sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+        if (body == null) return head;
+        byte[] request = Arrays.copyOf(head, head.length + body.length);
+        System.arraycopy(body, 0, request, head.length, body.length);
+        return request;
+    }
+
+    /**
+     * This method checks the parsed request and responds with the appropriate error message. If passed without errors gets handed to the appropriate command method
+     */
+    public void parseRequest() {
+
+        String command = parser.method(); // One of the RequestParser constants, so == works
+        if (command == RequestParser.GET || command == RequestParser.POST || command == RequestParser.HEAD) {
             // Do nothing and continue
-        } else if (command.equals("DELETE") || command.equals("PUT") || command.equals("LINK") || command.equals("UNLINK")) {
+        } else if (command == RequestParser.DELETE || command == RequestParser.PUT || command == RequestParser.LINK || command == RequestParser.UNLINK) {
             write(Response.getErrorMessage(501)); // Return 501 not implemented
             return;
         } else {
@@ -77,29 +388,36 @@ public class SocketHandler implements Runnable {
             return;
         }
 
-        String source = firstLine[1];
-        if (source.charAt(0) == '/') {
-            source = "." + source;
+        String source = parser.target();
+        if (source == null || source.isEmpty()) {
+            write(Response.getErrorMessage(400)); // Path missing 400 Bad request
+            return;
         }
 
-        // Check whether source path is valid
-        File sourceFile = new File(source);
-        try {
-            sourceFile.getCanonicalPath();
-        } catch (Exception e) {
+        // Check whether source path is valid and inside the document root, usually a single cache lookup
+        HttpEvents.FileResolved event = new HttpEvents.FileResolved();
+        event.begin();
+        DocRoot.Target target = DocRoot.shared.resolve(source);
+        event.end();
+        if (event.shouldCommit()) {
+            event.target = source;
+            event.path = target == null ? null : target.name;
+            event.commit();
+        }
+        if (target == null) {
             write(Response.getErrorMessage(400)); //Send 400 Bad request when not valid
             return;
         }
 
-        if (firstLine.length < 3) {
-            write(Response.getErrorMessage(400)); // HTTP version number missing 400 Bad request
+        if (parser.tokens() != 3) {
+            write(Response.getErrorMessage(400)); // HTTP version number missing or extra tokens 400 Bad request
             return;
         }
 
-        String version = firstLine[2];
-        if (version.matches("HTTP/0.\\d") || version.matches("HTTP/1.0")) {
-            // Do nothing version is good
-        } else if (version.matches("HTTP/\\d.\\d")) {
+        int version = parser.version();
+        if (version >= 0 && version <= 11) {
+            // Do nothing version is good, HTTP/0.x through HTTP/1.1
+        } else if (version > 11) {
             write(Response.getErrorMessage(505)); // Send 505 HTTP Version Not Supported
             return;
         } else {
@@ -107,17 +425,18 @@ public class SocketHandler implements Runnable {
             return;
         }
 
+        if (command == RequestParser.GET && Metrics.shared != null && parser.target().equals(Metrics.path)) {
+            sendMetrics();
+            return;
+        }
+
         // Hand off the file to the appropriate method
-        switch (command) {
-            case "HEAD":
-                head(sourceFile);
-                break;
-            case "GET":
-                get(sourceFile);
-                break;
-            case "POST":
-                post(sourceFile);
-                break;
+        if (command == RequestParser.HEAD) {
+            head(target);
+        } else if (command == RequestParser.GET) {
+            get(target);
+        } else {
+            post(target);
         }
 
         return;
@@ -127,224 +446,421 @@ public class SocketHandler implements Runnable {
      * This method parses incoming request and responds with the appropriate error message. If passed without errors gets handed to the appropriate command method
      * @param request The request string
      */
-    public void get(File sourceFile) {
-        if (!sourceFile.exists()) {
-            write(Response.getErrorMessage(404)); //If file does not exist send 404 Not found
-            return;
-        } else if (!sourceFile.canRead()) {
-            write(Response.getErrorMessage(403)); //If file unreadable 403 forbidden
+    public void get(DocRoot.Target target) {
+        File sourceFile = target.file;
+        LocalDateTime now = LocalDateTime.now();
+        String cookie = WelcomePage.cookie(now); //Every GET records the visit
+        if (target.name.equals(WelcomePage.PATH)) {
+            sendWelcome(WelcomePage.lastVisit(header("Cookie"), now), cookie, true);
             return;
         }
 
-        //Checks if if-modified header exists, if it does it checks if the file has been modified since the given time. If it hasn't been it sends a 304 Not Modified
-        if (ifModified != null) {
-            if(!ifModified.trim().isEmpty()) {
-                String date = ifModified.substring(ifModified.indexOf(" ") + 1);
-                long modifiedSince = Response.convertToLong(date);
-                if (modifiedSince != 0) {
-                    if (sourceFile.lastModified() <= modifiedSince) {
-                        write(Response.getErrorMessage(304));
-                        return;
-                    }
-                }
+        ContentCache cache = ContentCache.shared;
+        ContentCache.Entry entry = cache == null ? null : cache.peek(sourceFile); //A cached file is known to exist and be readable
+        FileMetadata.Info info = null;
+        if (entry == null) {
+            info = FileMetadata.lookup(sourceFile); //Usually answered from memory, no stat
+            if (!info.exists) {
+                write(Response.getErrorMessage(404)); //If file does not exist send 404 Not found
+                return;
+            } else if (!info.readable) {
+                write(Response.getErrorMessage(403)); //If file unreadable or a directory 403 forbidden
+                return;
             }
         }
+        if (entry != null ? notModified(entry.lastModified, entry.etag) : notModified(info.lastModified, info.etag)) {
+            return;
+        }
 
-        Response r = new Response(sourceFile); //Create new response object with source file
-        String lasttime = "";
+        if (entry == null && cache != null) {
+            entry = cache.get(sourceFile); //Loads the file on a miss, stays null if it is too large to cache
+        }
+        String range = header("Range");
 
-        // handles the date format included the variable for both the encoded and decoded date
-        String date;
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        String newDate = sdf.format(new Date());
-        String encodedDate = "";
-        String decodedDate = "";
-        int i = 0;
+        MappedFiles.Mapping mapping = null;
+        FileChannel channel = null;
+        try {
+            ByteBuffer content = null; // Whole body when it is already in memory, from the cache or a shared mapping
+            String entityHeaders;
+            long length;
+            long modified;
+            String etag;
+            if (entry != null) {
+                content = entry.body();
+                length = entry.length;
+                modified = entry.lastModified;
+                etag = entry.etag;
+                entityHeaders = entry.headers;
+            } else if (MappedFiles.shared != null && info.length >= MappedFiles.threshold
+                    && (mapping = MappedFiles.shared.acquire(sourceFile, info)) != null) {
+                content = mapping.buffer();
+                length = mapping.length;
+                modified = mapping.lastModified;
+                etag = FileMetadata.etag(modified, length);
+                entityHeaders = new Response(sourceFile).getEntityHeaders(length, modified);
+            } else {
+                channel = FileChannel.open(sourceFile.toPath(), StandardOpenOption.READ);
+                length = channel.size(); //Length comes from the open file so it matches what gets sent
+                modified = sourceFile.lastModified();
+                etag = FileMetadata.etag(modified, length);
+                entityHeaders = new Response(sourceFile).getEntityHeaders(length, modified);
+            }
 
-        // checks if this is the first time the client has accessed the server, reading the cookie if it's there
-        boolean hasVisited = false;
-        for (String line : request) {
-            String tokens[] = line.split(" ");
-            switch (tokens[0]) {
-                case "Cookie:":
-                    try {
-                        lasttime = tokens[1];
-                        hasVisited = true;
-                        i = request.indexOf(line);
-                    } catch (ArrayIndexOutOfBoundsException e){
-                        i = request.indexOf(line);
-                    }
-                    break;
+            List<long[]> ranges = range == null ? null : Response.parseRanges(range, length);
+            Compression.Variant variant = ranges != null || Compression.shared == null ? null
+                    : Compression.shared.variant(sourceFile, header("Accept-Encoding"), modified, length, content); //Ranges are always of the identity body
+            if (variant != null) {
+                sendVariant(variant, target.mime, modified, etag, cookie);
+            } else if (ranges == null) { //No usable Range header, send the whole file
+                String headers = Response.getResponseHeaders(entityHeaders, parser.target()) + cookie;
+                writeHead(headers);
+                sendBody(content, channel, 0, length);
+            } else if (ranges.isEmpty()) {
+                write(Response.getErrorMessage(416) + "\r\nContent-Range: bytes */" + length); //None of the ranges are inside the file
+                return;
+            } else if (ranges.size() == 1) {
+                long[] r = ranges.get(0);
+                String headers = Response.getPartialHeaders(target.mime, r[1] - r[0] + 1,
+                        "bytes " + r[0] + "-" + r[1] + "/" + length, modified, etag, parser.target()) + cookie;
+                writeHead(headers);
+                sendBody(content, channel, r[0], r[1] - r[0] + 1);
+            } else {
+                sendMultipart(ranges, target.mime, length, modified, etag, cookie, content, channel);
+            }
+            if (!keepAlive) closeStreams();
+        } catch (IOException e) {
+            keepAlive = false;
+            closeStreams();
+        } finally {
+            if (mapping != null) MappedFiles.shared.release(mapping);
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+
+                }
             }
         }
 
+        return;
+
+    }
+
+    /**
+     * Sends the compressed variant of a file, from memory or from its precompressed .gz
+     */
+    private void sendVariant(Compression.Variant variant, String mime, long modified, String etag, String cookie) throws IOException {
+        ByteBuffer encoded = variant.body();
+        FileChannel encodedFile = encoded == null ? FileChannel.open(variant.file.toPath(), StandardOpenOption.READ) : null;
         try {
-            encodedDate = URLEncoder.encode(newDate, "UTF-8"); // encodes the date, if it can't throws an AssertionError
-        } catch (UnsupportedEncodingException e) {
-            throw new AssertionError("UTF-8 is unknown");
+            long length = encoded != null ? encoded.remaining() : encodedFile.size();
+            writeHead(Response.getResponseHeaders(Response.getEncodedHeaders(mime, length,
+                    modified, variant.encoding, etag), parser.target()) + cookie);
+            sendBody(encoded, encodedFile, 0, length);
+        } finally {
+            if (encodedFile != null) encodedFile.close();
         }
+    }
 
-        if(hasVisited){
-            date = lasttime.split("=")[1];
-            try {
-                decodedDate = URLDecoder.decode(date, "UTF-8"); // decodes the date, if it can't throws an AssertionError
-            } catch (UnsupportedEncodingException e) {
-                throw new AssertionError("UTF-8 is unknown");
-            }
+    /**
+     * Sends several ranges of a file as a multipart/byteranges response
+     */
+    private void sendMultipart(List<long[]> ranges, String mime, long length, long modified, String etag, String cookie,
+                               ByteBuffer content, FileChannel channel) throws IOException {
+        String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+        String[] parts = new String[ranges.size()];
+        long total = 0;
+        for (int i = 0; i < parts.length; i++) {
+            long[] r = ranges.get(i);
+            parts[i] = "\r\n--" + boundary + "\r\nContent-Type: " + mime + "\r\nContent-Range: bytes " + r[0] + "-" + r[1]
+                    + "/" + length + "\r\n\r\n";
+            total += parts[i].length() + r[1] - r[0] + 1;
+        }
+        String end = "\r\n--" + boundary + "--\r\n";
+        total += end.length();
+
+        writeHead(Response.getPartialHeaders("multipart/byteranges; boundary=" + boundary, total, null, modified, etag,
+                parser.target()) + cookie);
+        for (int i = 0; i < parts.length; i++) {
+            long[] r = ranges.get(i);
+            resp.print(parts[i]);
+            sendBody(content, channel, r[0], r[1] - r[0] + 1);
+        }
+        resp.print(end);
+    }
 
+    /**
+     * POST method verifies certain headers then runs the cgi file with the decoded body, on a pooled worker when
+     * CgiPool is on and in a new process otherwise. With CgiCache on, the output may come from the cache or from
+     * a run another request started.
+     * @param target the script
+     */
+    public void post(DocRoot.Target target) {
+        File sourceFile = target.file;
+        FileMetadata.Info info = FileMetadata.lookup(sourceFile);
+        if (!info.exists) {
+            write(Response.getErrorMessage(404)); //If file does not exist send 404 Not found
+            return;
+        } else if (!info.readable) {
+            write(Response.getErrorMessage(403)); //If file unreadable 403 forbidden
+            return;
+        }
 
-            // Handles for the html file to send to a return client, including the date from the old cookie
-            request.set(i,"Set-Cookie: lasttime="+encodedDate+"\n");
-            File index_seen = new File("./index_seen.html");
-            String htmlmsg = "<html>\n<body>\n<h1>CS 352 Welcome Page</h1>\n<p>\nWelcome back! Your last visit was at: " + decodedDate + "\n<p>\n</body>\n</html>";
-            if (decodedDate.compareTo(newDate) > 0){
-                //treat like a new user
-                htmlmsg = "<html>\n<body>\n<h1>CS 352 Welcome Page</h1>\n<p>\nWelcome! We have not seen you before.\n<p>\n</body>\n</html>";
-            }
-            try {
-                FileWriter writer = new FileWriter(index_seen);
-                writer.write(htmlmsg);
-                writer.close();
-                InputStream in = this.getClass().getClassLoader()
-                        .getResourceAsStream("./index_seen.html");
-                String link = new BufferedReader(new InputStreamReader(in))
-                        .lines().collect(Collectors.joining("\n"));
-                request.add(link);
-            } catch (Exception e) {
-            }
+        if (header("Content-Type") == null) { // sends error if there is no Content-Type
+            write(Response.getErrorMessage(500));
+            return;
         }
-        // Handles for the html file to send to a new client, then sets the date for the cookie
-        else{
-            File index = new File("./index.html");
-            System.out.println(index.getAbsolutePath());
-            String htmlmsg = "<html>\n<body>\n<h1>CS 352 Welcome Page</h1>\n<p>\nWelcome! We have not seen you before.\n<p>\n</body>\n</html>";
-            try {
-                FileWriter writer = new FileWriter(index);
-                writer.write(htmlmsg);
-                writer.close();
-                InputStream in = this.getClass().getClassLoader()
-                        .getResourceAsStream("./index.html");
-                String link = new BufferedReader(new InputStreamReader(in))
-                        .lines().collect(Collectors.joining("\n"));
-                request.add(link);
-                if(i==0){
-                    request.set(4,"Set-Cookie: lasttime="+encodedDate+"\n");
-                }
-                else{
-                    request.set(i,"Set-Cookie: lasttime="+encodedDate+"\n");
-                }
-            } catch (Exception e2) {}
+        String script = sourceFile.getPath();
+        if (!target.cgi) { // sends error if there is no cgi given in path
+            write(Response.getErrorMessage(405));
+            return;
         }
 
-        StringBuilder sb = new StringBuilder();
-        for(String line : request){
-            if(line.equals("")) continue;
-            sb.append(line+"\r\n");
-            // standard get method output for the headers
+        long contentLength = parser.longValue("Content-Length");
+        if (contentLength < 0) { // body has to be length delimited
+            write(Response.getErrorMessage(411));
+            return;
+        } else if (contentLength > MAX_BODY) {
+            write(Response.getErrorMessage(413));
+            return;
+        } else if (contentLength > 0 && (body == null || body.length < contentLength)) { // client sent less than it said
+            write(Response.getErrorMessage(400));
+            return;
         }
-        System.out.println(sb.toString());
-        String headers;
-        byte[] fileBytes;
+
+        HttpEvents.CgiExecuted event = new HttpEvents.CgiExecuted();
+        event.begin();
         try {
-            BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(s.getOutputStream()));
-            headers = sb.toString() + "\r\n"; //Creates headers
-            bw.write(headers);
-            bw.flush();
+            String decoded = decode(body == null ? null : new String(body, "ISO-8859-1"));
+            byte[] input = decoded == null ? new byte[0] : decoded.getBytes("ISO-8859-1");
 
-            Thread.sleep(250);
-            closeStreams();
+            //build key map
+            Map<String,String> map = new HashMap<String,String>();
+            map.put("SCRIPT_NAME", parser.target());
+            map.put("SERVER_NAME", "me@mycomputer");
+            map.put("SERVER_PORT", s.getLocalPort() + "");
+            putIfPresent(map, "HTTP_FROM", header("From"));
+            putIfPresent(map, "HTTP_USER_AGENT", header("User-Agent"));
+            map.put("CONTENT_LENGTH", input.length + "");
+
+            CgiCache cache = CgiCache.shared;
+            if (cache != null) {
+                CgiPool pool = CgiPool.shared;
+                sendCgiResult(cache.get(cache.key(script, parser.target(), input, this::header),
+                        () -> pool != null ? pool.run(script, map, input) : runScript(script, map, input)));
+                return;
+            }
+            if (CgiPool.shared != null) {
+                sendCgiResult(CgiPool.shared.run(script, map, input));
+                return;
+            }
+
+            //create the process
+            ProcessBuilder pb = new ProcessBuilder(script);
+            pb.environment().putAll(map);
+            pb.redirectError(ProcessBuilder.Redirect.INHERIT); //An unread stderr pipe would block the script once full
+            Process process = pb.start();
+            CgiPool.Deadline deadline = new CgiPool.Deadline(process);
+            try {
+                try (OutputStream stdin = process.getOutputStream()) {
+                    stdin.write(input); //Body is at most MAX_BODY, a script that never reads it is stopped by the deadline
+                } catch (IOException e) {
+                    //Script exited or closed stdin without reading its input
+                }
+                sendCgiOutput(process.getInputStream(), deadline);
+            } finally {
+                deadline.cancel();
+                process.destroy(); //Only still running if sending failed part way
+            }
+        } catch (InterruptedIOException e) {
+            write(Response.getErrorMessage(504)); //Pooled script ran too long
         } catch (IOException e) {
-            closeStreams();
+            write(Response.getErrorMessage(500));
         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            keepAlive = false;
             closeStreams();
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.script = target.name;
+                event.mode = CgiCache.shared != null ? "cache" : CgiPool.shared != null ? "pool" : "fork";
+                event.status = status;
+                event.bytes = sent;
+                event.commit();
+            }
         }
+    }
 
-        return;
+    /**
+     * Sends the output of a script that has already finished
+     * @param result the run, or null if it never started because every worker for the script stayed busy
+     */
+    private void sendCgiResult(CgiPool.Result result) throws IOException, InterruptedException {
+        if (result == null) {
+            HttpEvents.rejected(s, "cgi workers busy");
+            write(Response.getErrorMessage(503)); //Every worker for this script is busy
+        } else if (!result.ok) {
+            write(Response.getErrorMessage(500)); //Script died
+        } else {
+            sendCgiOutput(new ByteArrayInputStream(result.output), null);
+        }
+    }
 
+    /**
+     * Runs a script in a new process and collects all of its output, for CgiCache, which needs the whole output
+     * before it can be stored and shared. A script printing more than CgiPool.maxOutput is killed and counts as
+     * failed, rather than being held in memory whole.
+     * @throws InterruptedIOException if the script ran past the timeout and was killed
+     */
+    private static CgiPool.Result runScript(String script, Map<String, String> env, byte[] input) throws IOException, InterruptedException {
+        ProcessBuilder pb = new ProcessBuilder(script);
+        pb.environment().putAll(env);
+        pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+        Process process = pb.start();
+        CgiPool.Deadline deadline = new CgiPool.Deadline(process);
+        try {
+            try (OutputStream stdin = process.getOutputStream()) {
+                stdin.write(input);
+            } catch (IOException e) {
+                //Script exited or closed stdin without reading its input
+            }
+            byte[] output = process.getInputStream().readNBytes(CgiPool.maxOutput + 1);
+            if (output.length > CgiPool.maxOutput) {
+                process.destroyForcibly();
+                System.err.println(script + " printed more than " + CgiPool.maxOutput + " bytes");
+                return new CgiPool.Result(false, new byte[0]);
+            }
+            int failed = deadline.exitStatus();
+            if (failed == 504) throw new InterruptedIOException(script + " timed out");
+            return new CgiPool.Result(failed == 0, output);
+        } finally {
+            deadline.cancel();
+            process.destroy();
+        }
     }
 
     /**
-     * POST method verifies certain headers then creates url from file path and parameters before the cgi file is run
-     * @param request The request string
+     * Sends a CGI script's output to the client. A header block at the start of the output (Content-Type, Status,
+     * Location, ...) is turned into the response head, output without one is sent as text/html. Output that fits
+     * in one buffer gets a Content-Length; longer output is streamed through the same buffer, chunked when the
+     * connection is persistent and until the connection closes otherwise.
+     * @param out the script's stdout
+     * @param deadline deadline of the script's process, or null if the output is already complete
      */
-    public void post(File sourceFile) {
-        if (!sourceFile.exists()) {
-            write(Response.getErrorMessage(404)); //If file does not exist send 404 Not found
-            return;
-        } else if (!sourceFile.canRead()) {
-            write(Response.getErrorMessage(403)); //If file unreadable 403 forbidden
+    private void sendCgiOutput(InputStream out, CgiPool.Deadline deadline) throws IOException, InterruptedException {
+        byte[] buf = new byte[CGI_BUFFER];
+        int n = out.readNBytes(buf, 0, buf.length);
+        boolean complete = n < buf.length; //Whole output is in the buffer
+
+        if (complete && deadline != null) {
+            int failed = deadline.exitStatus();
+            if (failed != 0) {
+                write(Response.getErrorMessage(failed)); //Killed or crashed, what it printed can't be trusted
+                return;
+            }
+        }
+        if (n == 0) {
+            write(Response.getErrorMessage(204));
             return;
         }
 
-        //reset req and parse the entire request
-        try{
-            req = new BufferedReader(new InputStreamReader(s.getInputStream()));
-
-            String[] data = new String[5]; //holds the request data
-            boolean type = false; //content type
-            for(String line: request){
-                String tokens[] = line.split(" ");
-                switch (tokens[0]){
-                    case "POST" : data[0]=tokens[1];
-                    case "From:": data[1] = tokens[1]; break;
-                    case "User-Agent:": data[2] = tokens[1]; break;
-                    case "Content-Type:" : type = true; break;
-                    case "Content-Length:": data[3] = tokens[1]; break;
-                    default:
-                        if(line.indexOf(":")<0){
-                            if(line.equals("")) continue;
-                            else data[4]=line;
-                        }
-                        else{
-                            write(Response.getErrorMessage(55));
-                        } break; //cannot parse and respond
+        StringBuilder headers = new StringBuilder();
+        String status = "200 OK";
+        String contentType = "text/html";
+        int bodyStart = cgiHeaderEnd(buf, n);
+        if (bodyStart > 0) {
+            for (String line : new String(buf, 0, bodyStart, "ISO-8859-1").split("\r?\n")) {
+                int colon = line.indexOf(':');
+                if (colon < 0) continue;
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Status") && value.matches("\\d{3}( .*)?")) {
+                    status = value;
+                } else if (name.equalsIgnoreCase("Content-Type")) {
+                    contentType = value;
+                } else if (name.equalsIgnoreCase("Location") && status.startsWith("200")) {
+                    status = "302 Found";
+                    headers.append(line).append("\r\n");
+                } else if (!name.equalsIgnoreCase("Content-Length") && !name.equalsIgnoreCase("Transfer-Encoding")
+                        && !name.equalsIgnoreCase("Connection")) { //Framing is ours to decide
+                    headers.append(line).append("\r\n");
                 }
             }
+        } else {
+            bodyStart = 0;
+        }
 
-            if(!type) write(Response.getErrorMessage(500));  // sends error if there is no Content-Type
-            if(!data[0].endsWith(".cgi")) write(Response.getErrorMessage(405)); // sends error if there is no cgi given in path
-
-            //decode params
-            String decoded =data[4];
-            if(decoded.contains("!!")){
-                decoded = decoded.replaceAll("!!", "!");
-            }
-            if(decoded.contains("!@")){
-                decoded = decoded.replaceAll("!@", "@");
-            }
-            if(decoded.contains("!")){
-                decoded= decoded.replaceAll("!", "*");
-            }
+        String head = Response.getCgiHeaders(status, contentType) + headers;
+        if (complete) {
+            writeHead(head + "Content-Length: " + (n - bodyStart) + "\r\n");
+            resp.write(buf, bodyStart, n - bodyStart);
+            sent += n - bodyStart;
+            resp.flush();
+            if (!keepAlive) closeStreams();
+            return;
+        }
 
-            //create the command
-            List<String> command= new ArrayList<String>();
-            command.add(data[0]);
-            if(decoded!=null)command.add(decoded);
-            //create the process
-            ProcessBuilder pb = new ProcessBuilder(command);
-            //build key map
-            Map<String,String> map = pb.environment();
-            map.put("SCRIPT_NAME",data[0]);
-            map.put("SERVER_NAME","me@mycomputer");
-            map.put("SERVER_PORT", s.getPort()+"");
-            map.put("HTTP_FROM",data[1]);
-            map.put("HTTP_USER_AGENT",data[2]);
-            map.put("CONTENT_LENGTH",data[3]);
-            //start process
-            Process process = pb.start();
-            //print results of process
-            BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            while(output.ready()){
-                System.out.println(output.readLine());
+        boolean chunked = keepAlive; //Only HTTP/1.1 connections are kept alive, so chunked is understood
+        writeHead(chunked ? head + "Transfer-Encoding: chunked\r\n" : head);
+        int from = bodyStart;
+        while (n > 0) {
+            if (n > from) {
+                if (chunked) resp.print(Integer.toHexString(n - from) + "\r\n");
+                resp.write(buf, from, n - from);
+                sent += n - from;
+                if (chunked) resp.print("\r\n");
+                resp.flush();
             }
-            //get the payload
-            //i give up idk what i'm doing and i can't find any resources that help me figure it out
-
+            from = 0;
+            n = out.read(buf);
+        }
+        if (chunked && (deadline == null || deadline.exitStatus() == 0)) {
+            resp.print("0\r\n\r\n"); //Only a script that finished gets a complete response
+            resp.flush();
+        } else {
+            keepAlive = false; //Output ends where the connection does
+            closeStreams();
+        }
+    }
 
+    /**
+     * Finds the blank line after the CGI headers a script printed
+     * @return index of the first body byte, or -1 if the output doesn't start with a header block
+     */
+    static int cgiHeaderEnd(byte[] buf, int n) {
+        int i = 0;
+        while (i < n && buf[i] != ':' && buf[i] != '\n' && buf[i] != ' ') i++;
+        if (i == 0 || i == n || buf[i] != ':') return -1; //First line isn't "Name: value"
+        for (; i < n; i++) {
+            if (buf[i] != '\n') continue;
+            if (i + 1 < n && buf[i + 1] == '\n') return i + 2;
+            if (i + 2 < n && buf[i + 1] == '\r' && buf[i + 2] == '\n') return i + 3;
+        }
+        return -1;
+    }
 
-        } catch (Exception e){}
-        return;
+    /**
+     * Undoes the escaping clients use for the POST body
+     * @return the decoded body, or null if there is none
+     */
+    private static String decode(String body) {
+        if (body == null) return null;
+        String decoded = body;
+        if(decoded.contains("!!")){
+            decoded = decoded.replaceAll("!!", "!");
+        }
+        if(decoded.contains("!@")){
+            decoded = decoded.replaceAll("!@", "@");
+        }
+        if(decoded.contains("!")){
+            decoded= decoded.replaceAll("!", "*");
+        }
+        return decoded;
+    }
 
+    private static void putIfPresent(Map<String,String> map, String name, String value) {
+        if (value != null) map.put(name, value);
     }
 
 
@@ -353,214 +869,260 @@ public class SocketHandler implements Runnable {
      * HEAD method returns just the headers of the file without the file contents
      * @param request The request string
      */
-    public void head(File sourceFile) {
+    public void head(DocRoot.Target target) {
+        File sourceFile = target.file;
+        if (target.name.equals(WelcomePage.PATH)) {
+            sendWelcome(WelcomePage.lastVisit(header("Cookie"), LocalDateTime.now()), "", false);
+            return;
+        }
 
-        if (!sourceFile.exists()) {
-            write(Response.getErrorMessage(404)); //If file not found send 404 not found
+        ContentCache.Entry entry = ContentCache.shared == null ? null : ContentCache.shared.peek(sourceFile);
+        FileMetadata.Info info = null;
+        if (entry == null) {
+            info = FileMetadata.lookup(sourceFile);
+            if (!info.exists) {
+                write(Response.getErrorMessage(404)); //If file not found send 404 not found
+                return;
+            } else if (!info.readable) {
+                write(Response.getErrorMessage(403)); //If file unreadable or a directory send 403 Forbidden
+                return;
+            }
+        }
+        if (entry != null ? notModified(entry.lastModified, entry.etag) : notModified(info.lastModified, info.etag)) {
+            return;
+        }
+
+        long modified = entry != null ? entry.lastModified : info.lastModified;
+        long length = entry != null ? entry.length : info.length;
+        String etag = entry != null ? entry.etag : info.etag;
+        String range = header("Range");
+        Compression.Variant variant = Compression.shared == null || (range != null && Response.parseRanges(range, length) != null)
+                ? null : Compression.shared.variant(sourceFile, header("Accept-Encoding"), modified, length,
+                entry == null ? null : entry.body()); //Negotiated as for a GET, whether or not the file is cached
+        if (variant != null) { //Same headers a GET would get
+            write(Response.getResponseHeaders(Response.getEncodedHeaders(target.mime,
+                    variant.file == null ? variant.body().remaining() : variant.file.length(), modified, variant.encoding,
+                    etag), parser.target()));
             return;
-        } else if (!sourceFile.canRead()) {
-            write(Response.getErrorMessage(403)); //If file unreadable found send 403 Forbidden
+        } else if (entry != null) { //Cached, answer without touching the filesystem
+            write(Response.getResponseHeaders(entry.headers, parser.target()));
             return;
         }
 
+        //Gets response headers from the file metadata and writes them to output stream, the file itself is never read
+        String headers = Response.getResponseHeaders(new Response(sourceFile).getEntityHeaders(info.length, info.lastModified),
+                parser.target());
+        write(headers);
 
-        //Gets response headers and writes them to output stream
-        Response r = new Response(sourceFile);
+        return;
+
+    }
 
-        String headers;
-        byte[] fileBytes;
+    /**
+     * Sends the welcome page, which is generated per visitor and so never cached by clients
+     * @param lastVisit previous visit time from WelcomePage.lastVisit, null for a new visitor
+     * @param cookie Set-Cookie header for this visit, empty for none
+     * @param body false for HEAD
+     */
+    private void sendWelcome(byte[] lastVisit, String cookie, boolean body) {
         try {
-            fileBytes = Files.readAllBytes(sourceFile.toPath());
-            headers = r.getResponseHeaders(fileBytes.length);
-            write(headers);
+            int length = WelcomePage.length(lastVisit);
+            writeHead(Response.getGeneratedHeaders("text/html", length) + cookie);
+            if (body) {
+                WelcomePage.write(resp, lastVisit);
+                sent += length;
+                resp.flush();
+            }
+            if (!keepAlive) closeStreams();
         } catch (IOException e) {
-            write(Response.getErrorMessage(500));
+            keepAlive = false;
+            closeStreams();
         }
+    }
 
-        return;
-
+    /**
+     * Answers with 304 when the request is conditional and the client's copy is still current. If-None-Match wins
+     * over If-Modified-Since when both are sent.
+     * @param lastModified modification time of the file
+     * @param etag current tag of the file, null when ETags are off
+     * @return true if the 304 was sent
+     */
+    private boolean notModified(long lastModified, String etag) {
+        String tag = etag;
+        String ifNoneMatch = header("If-None-Match");
+        if (ifNoneMatch != null) {
+            tag = FileMetadata.match(ifNoneMatch, etag); //Tag the client has, so a compressed copy keeps its own
+            if (tag == null) return false;
+        } else {
+            String ifModified = header("If-Modified-Since");
+            if (ifModified == null) return false;
+            long since = Response.convertToLong(ifModified);
+            if (since == 0 || lastModified / 1000 > since / 1000) return false; //HTTP dates only have whole seconds
+        }
+        try {
+            writeHead(Response.getNotModifiedHeaders(tag, parser.target()));
+            if (!keepAlive) closeStreams();
+        } catch (IOException e) {
+            keepAlive = false;
+            closeStreams();
+        }
+        return true;
     }
 
 
     /**
-     * Takes in a response string and writes it out to the buffer and closes the streams/socket
+     * Answers a GET for Metrics.path with the current metrics
      */
-    public void write(String response) {
+    private void sendMetrics() {
         try {
-            resp.write(response.getBytes());
+            byte[] text = Metrics.shared.render().getBytes("ISO-8859-1");
+            writeHead(Response.getGeneratedHeaders("text/plain; version=0.0.4", text.length));
+            resp.write(text);
+            sent += text.length;
             resp.flush();
-            Thread.sleep(250);
-            closeStreams();
+            if (!keepAlive) closeStreams();
         } catch (IOException e) {
-            closeStreams();
-        } catch (InterruptedException e) {
+            keepAlive = false;
             closeStreams();
         }
     }
 
     /**
-     * Closes all streams
+     * Takes in a response string and writes it out to the buffer. The streams/socket are closed afterwards unless
+     * the connection is persistent and the status allows it to stay open. Only HTTP/1.0 and 0.9 requests get the
+     * bare head, everyone else a complete one ending in a blank line.
      */
-    public void closeStreams() {
+    public void write(String response) {
+        status = statusOf(response);
+        if (keepAlive && !persistentStatus(response)) {
+            keepAlive = false;
+        }
         try {
-            resp.close(); //Close output stream
-            req.close(); //Close input stream
-            s.close(); //Close socket
+            if (keepAlive) {
+                resp.print(frame(response, true, false)); //Sent with the next flush, at the latest before the next read
+            } else {
+                int version = parser.version();
+                resp.print(version >= 0 && version <= 10 ? response : frame(response, false, false));
+                closeStreams();
+            }
         } catch (IOException e) {
-
+            keepAlive = false;
+            closeStreams();
         }
-
-        return;
     }
-}
-
-
-/**
- * Response class to properly structure HTTP response messages
- */
-class Response {
 
-    File source;
-
-    public Response(File source) {
-        this.source = source;
+    /**
+     * Writes a response head that a body will follow. Unlike write this never closes the connection.
+     * @param headers status line and headers, without the terminating blank line
+     */
+    private void writeHead(String headers) throws IOException {
+        status = statusOf(headers);
+        int version = parser.version();
+        if (keepAlive) {
+            resp.print(frame(headers, true, true));
+        } else if (version >= 0 && version <= 10) {
+            resp.print(headers);
+            resp.print("\r\n");
+        } else {
+            resp.print(frame(headers, false, true));
+        } //Stays in the buffer so it goes out in the same write as the body
     }
 
     /**
-     * Gets response headers bases on file info
-     * @param length
-     * @return response headers in string format
+     * Sends part of a body, either from memory or from the open file
+     * @param content the whole body when it is in memory, otherwise null
+     * @param channel the open file when the body is not in memory
+     * @param start first byte to send
+     * @param count number of bytes to send
      */
-    public String getResponseHeaders(int length) {
-        StringBuilder s = new StringBuilder();
-        s.append("HTTP/1.0 200 OK\r\n");
-        s.append("Content-Type: " + getMimeType(source.getAbsolutePath()) + "\r\n");
-        s.append("Content-Length: " + length + "\r\n");
-        s.append("Last-Modified: " + convertDateFormat(source.lastModified()) + "\r\n");
-        s.append("Content-Encoding: " + "identity\r\n");
-        s.append("Allow: GET, POST, HEAD\r\n");
-        s.append("Expires: " + convertDateFormat(System.currentTimeMillis() + 10000000) + "\r\n");
-
-        return s.toString();
+    private void sendBody(ByteBuffer content, FileChannel channel, long start, long count) throws IOException {
+        sent += count;
+        if (content != null) {
+            ByteBuffer part = content.duplicate();
+            part.limit((int) (start + count));
+            part.position((int) start);
+            resp.write(part);
+        } else {
+            resp.transfer(channel, start, count);
+        }
     }
 
     /**
-     * Finds file extension from source and returns with corresponding mime type
-     * @param source Source file path
-     * @return the mime type
+     * Finds a header in the current request
+     * @param name header name, matched ignoring case
+     * @return the trimmed value, or null if the request doesn't have it
      */
-    public static String getMimeType(String source) {
-        String extension = source.substring(source.lastIndexOf(".") + 1);
+    private String header(String name) {
+        return parser.header(name);
+    }
 
-        String mime = "";
-        switch (extension) {
-            case "txt":
-                mime = "text/plain";
-                break;
-            case "html":
-                mime = "text/html";
-                break;
-            case "gif":
-                mime = "image/gif";
-                break;
-            case "jpeg":
-                mime = "image/jpeg";
-                break;
-            case "png":
-                mime = "image/png";
-                break;
-            case "pdf":
-                mime = "application/pdf";
-                break;
-            case "x-gzip":
-                mime = "application/x-gzip";
-                break;
-            case "zip":
-                mime = "application/zip";
-                break;
-            default:
-                mime = "application/octet-stream";
+    /**
+     * @return the status code on a response's status line, 0 if there is none
+     */
+    private static int statusOf(String response) {
+        if (response.length() < 12) return 0;
+        int code = 0;
+        for (int i = 9; i < 12; i++) {
+            char c = response.charAt(i);
+            if (c < '0' || c > '9') return 0;
+            code = code * 10 + (c - '0');
         }
-
-        return mime;
+        return code;
     }
 
     /**
-     * Takes error code as input and returns correspoding error message
-     * @param statusCode http error code
-     * @return error message string
+     * Only successful responses and plain not found/forbidden/not modified/bad range answers keep the connection open,
+     * anything else means the request or the server is in a bad state
      */
-    public static String getErrorMessage(int statusCode) {
-        String output = "";
-        switch (statusCode) {
-            case 304:
-                output = "HTTP/1.0 " + statusCode + " Not Modified" + "\r\n" + "Expires: " + convertDateFormat(System.currentTimeMillis() + 10000000);
-                break;
-            case 400:
-                output = "HTTP/1.0 " + statusCode + " Bad Request";
-                break;
-            case 403:
-                output = "HTTP/1.0 " + statusCode + " Forbidden";
-                break;
-            case 404:
-                output = "HTTP/1.0 " + statusCode + " Not Found";
-                break;
-            case 405:
-                output = "HTTP/1.0 " + statusCode + " Method Not Allowed";
-            case 408:
-                output = "HTTP/1.0 " + statusCode + " Request Timeout";
-                break;
-            case 411:
-                output = "HTTP/1.0 " + statusCode + " 411 Length Required";
-            case 500:
-                output = "HTTP/1.0 " + statusCode + " Internal Service Error";
-                break;
-            case 501:
-                output = "HTTP/1.0 " + statusCode + " Not Implemented";
-                break;
-            case 503:
-                output = "HTTP/1.0 " + statusCode + " Service Unavailable";
-                break;
-            case 505:
-                output = "HTTP/1.0 " + statusCode + " HTTP Version Not Supported";
-                break;
+    private static boolean persistentStatus(String response) {
+        if (response.length() < 12) return false;
+        switch (response.substring(9, 12)) {
+            case "200":
+            case "204":
+            case "206":
+            case "304":
+            case "403":
+            case "404":
+            case "416":
+                return true;
+            default:
+                return false;
         }
-        return output;
     }
 
     /**
-     * Takes time in long and converts it to http date format
-     * @param time date in long format
-     * @return date in HTTP date format
+     * Turns a response head into a complete HTTP/1.1 one: HTTP/1.1 status line, a Content-Length so the client
+     * knows where it ends, the Connection header and the terminating blank line
+     * @param persistent another response may follow on the same connection
+     * @param body a body follows the head, so a head without a length is left to end with the connection
      */
-    public static String convertDateFormat(long time) {
-        Date date = new Date(time);
-        SimpleDateFormat httpFormatter = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z");
-        httpFormatter.setTimeZone(TimeZone.getTimeZone("GMT"));
-        String httpDate = httpFormatter.format(date);
-
-        return httpDate;
+    private String frame(String response, boolean persistent, boolean body) {
+        int end = response.length();
+        while (end > 0 && (response.charAt(end - 1) == '\n' || response.charAt(end - 1) == '\r')) end--;
+
+        StringBuilder sb = new StringBuilder(end + 64);
+        sb.append(http11 || !persistent ? "HTTP/1.1" : "HTTP/1.0").append(response, 8, end).append("\r\n");
+        if (!body && response.indexOf("Content-Length:") < 0 && response.indexOf("Transfer-Encoding:") < 0
+                && !response.startsWith("204", 9) && !response.startsWith("304", 9)) {
+            sb.append("Content-Length: 0\r\n");
+        }
+        sb.append(persistent ? "Connection: keep-alive\r\n\r\n" : "Connection: close\r\n\r\n");
+        return sb.toString();
     }
 
     /**
-     * Converts dateFormat back to long
-     * @param time date in long format
-     * @return date in long format or 0 if cannot be parsed
+     * Flushes the response and closes the connection. The socket is half closed here and fully closed in the
+     * background by GracefulClose, so the thread is free as soon as this returns.
      */
-    public static long convertToLong(String date) {
-        SimpleDateFormat httpFormatter = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z");
-        httpFormatter.setTimeZone(TimeZone.getTimeZone("GMT"));
-
-        Date dateObj;
-        long inLong;
+    public void closeStreams() {
+        arm(WRITE_TIMEOUT);
         try {
-            dateObj = httpFormatter.parse(date);
-            inLong = dateObj.getTime();
-        } catch (ParseException e) {
-            inLong = 0;
+            if (resp != null) resp.flush(); //Make sure the whole response is out before the FIN
+        } catch (IOException e) {
+
         }
+        GracefulClose.close(s);
 
-        return inLong;
+        return;
     }
-
-}}
\ No newline at end of file
+}
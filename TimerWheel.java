@@ -0,0 +1,208 @@
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timer wheel for connection deadlines. Time is cut into ticks and every pending timeout sits in the
+ * bucket of the tick it expires on, a delay longer than one turn of the wheel waiting out the extra turns in that
+ * same bucket. Scheduling, rescheduling and cancelling only link or unlink a node, so they cost the same however
+ * many connections are waiting, and a single thread advancing one bucket per tick finds everything that expired
+ * without ever looking at the rest. Deadlines fire up to one tick late, which is fine for timeouts measured in
+ * seconds.
+ *
+ * Every bucket has its own lock, so threads arming deadlines only contend when they land in the same bucket, and
+ * the ticker only holds the lock of the bucket it is walking. Expired timeouts are collected under that lock and
+ * run once it is released.
+ *
+ * Every connection owns one Timeout and re-arms it as it moves from one wait to the next, so a busy server
+ * allocates nothing here.
+ */
+public class TimerWheel {
+
+    static TimerWheel shared = new TimerWheel(100, 512); // Wheel every connection's deadlines run on
+
+    private final long tick; // Milliseconds per tick
+    private final Timeout[] buckets; // Sentinel of each bucket's circular list
+    private final int mask;
+    private volatile long ticks; // Ticks done so far, only advanced under the lock of the bucket it reaches
+    private final AtomicInteger pending = new AtomicInteger(); // Timeouts scheduled
+    private volatile Thread ticker; // Started with the first schedule
+    private List<Timeout> due = new ArrayList<Timeout>(); // Expired this tick, reused by the ticker
+
+    /**
+     * Something that runs once its delay is up, unless it is cancelled or rescheduled first. A Timeout can be
+     * rescheduled any number of times, but is only ever pending once.
+     */
+    public abstract static class Timeout {
+        private Timeout prev, next; // Neighbours in its bucket, guarded by the bucket's lock
+        private long rounds; // Turns of the wheel left before it expires, guarded by the bucket's lock
+        private volatile int bucket = -1; // Bucket it is pending in, -1 while not scheduled
+        private volatile long armed; // Schedules and cancels so far, changed under this Timeout's monitor
+        private long expiring; // Value of armed when the ticker took it off its bucket
+
+        /**
+         * Runs on the wheel's thread holding this Timeout's monitor, which schedule and cancel take as well, so it
+         * must not block. Once schedule or cancel has returned on another thread, an expiry from the earlier
+         * schedule can no longer run.
+         */
+        protected abstract void expired();
+    }
+
+    /**
+     * @param tick milliseconds per tick, the precision of every deadline
+     * @param size number of buckets, rounded up to a power of two
+     */
+    public TimerWheel(long tick, int size) {
+        this.tick = Math.max(1, tick);
+        int n = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+        buckets = new Timeout[n];
+        for (int i = 0; i < n; i++) {
+            Timeout sentinel = new Timeout() {
+                protected void expired() {
+
+                }
+            };
+            sentinel.prev = sentinel.next = sentinel;
+            buckets[i] = sentinel;
+        }
+        mask = n - 1;
+    }
+
+    /**
+     * Reads --timer-tick, the precision of connection timeouts in milliseconds
+     */
+    public static void configure(ServerOptions options) {
+        shared = new TimerWheel(options.getInt("timer-tick", 100), 512);
+    }
+
+    /**
+     * Arms a timeout, replacing its earlier deadline if it was already pending
+     * @param delay milliseconds from now, it expires no sooner and at most a tick later
+     */
+    public void schedule(Timeout t, long delay) {
+        long n = Math.max(0, (delay + tick - 1) / tick) + 1; //The tick under way is partly gone already
+        synchronized (t) {
+            remove(t);
+            while (true) {
+                long at = ticks + n;
+                Timeout sentinel = buckets[(int) (at & mask)];
+                synchronized (sentinel) {
+                    long now = ticks;
+                    if (now >= at) continue; //The ticker got to the bucket first, pick another
+                    t.rounds = (at - now - 1) / buckets.length;
+                    t.prev = sentinel.prev;
+                    t.next = sentinel;
+                    sentinel.prev.next = t;
+                    sentinel.prev = t;
+                    t.bucket = (int) (at & mask);
+                }
+                break;
+            }
+            pending.incrementAndGet();
+            t.armed++; //Last, so an expiry the ticker collected meanwhile sees it is stale
+        }
+        if (ticker == null) start();
+    }
+
+    /**
+     * @return false if the timeout was not pending, because it already expired or was never scheduled
+     */
+    public boolean cancel(Timeout t) {
+        synchronized (t) {
+            boolean removed = remove(t);
+            t.armed++;
+            return removed;
+        }
+    }
+
+    /**
+     * @return true if the timeout is scheduled and has not expired yet
+     */
+    public boolean isPending(Timeout t) {
+        return t.bucket >= 0;
+    }
+
+    /**
+     * @return the number of pending timeouts
+     */
+    public int size() {
+        return pending.get();
+    }
+
+    private synchronized void start() {
+        if (ticker != null) return;
+        Thread t = new Thread(this::run, "timer-wheel");
+        t.setDaemon(true);
+        t.start();
+        ticker = t;
+    }
+
+    /**
+     * Takes a timeout off its bucket. The caller holds the timeout's monitor, so only the ticker can take it off
+     * meanwhile.
+     * @return false if it was not pending
+     */
+    private boolean remove(Timeout t) {
+        int b = t.bucket;
+        if (b < 0) return false;
+        synchronized (buckets[b]) {
+            if (t.bucket != b) return false; //Expired just now
+            unlink(t);
+        }
+        return true;
+    }
+
+    private void unlink(Timeout t) { //Caller holds the bucket's lock
+        t.prev.next = t.next;
+        t.next.prev = t.prev;
+        t.prev = t.next = null;
+        t.bucket = -1;
+        pending.decrementAndGet();
+    }
+
+    /**
+     * Runs on the ticker thread, expiring one bucket per tick. Ticks missed while the thread was held up are
+     * caught up on straight away.
+     */
+    private void run() {
+        long next = System.nanoTime() + tick * 1000000;
+        while (true) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+            next += tick * 1000000;
+            long now = ticks + 1;
+            Timeout sentinel = buckets[(int) (now & mask)];
+            synchronized (sentinel) {
+                ticks = now;
+                for (Timeout t = sentinel.next; t != sentinel; ) {
+                    Timeout following = t.next;
+                    if (t.rounds > 0) {
+                        t.rounds--;
+                    } else {
+                        t.expiring = t.armed;
+                        unlink(t);
+                        due.add(t);
+                    }
+                    t = following;
+                }
+            }
+            for (Timeout t : due) { //Without the bucket's lock, expired may reschedule into it
+                synchronized (t) {
+                    if (t.armed != t.expiring) continue; //Rescheduled or cancelled since it was collected
+                    try {
+                        t.expired();
+                    } catch (RuntimeException e) {
+                        //One bad timeout must not stop the wheel
+                    }
+                }
+            }
+            due.clear();
+        }
+    }
+}
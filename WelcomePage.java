@@ -0,0 +1,76 @@
+import java.io.*;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * The CS 352 welcome page served for /index.html. Every GET sets a lasttime cookie, and a returning visitor is
+ * told when they were last here. The page is put together from fragments prepared once with only the visit time
+ * filled in per request, so serving it touches no files and concurrent visitors never see each other's page.
+ */
+public class WelcomePage {
+
+    static final String PATH = "/index.html"; // Path under the document root the page is served for
+
+    private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private static final byte[] NEW_VISITOR = "<html>\n<body>\n<h1>CS 352 Welcome Page</h1>\n<p>\nWelcome! We have not seen you before.\n<p>\n</body>\n</html>".getBytes();
+    private static final byte[] RETURNING = "<html>\n<body>\n<h1>CS 352 Welcome Page</h1>\n<p>\nWelcome back! Your last visit was at: ".getBytes();
+    private static final byte[] END = "\n<p>\n</body>\n</html>".getBytes();
+
+    /**
+     * @return the Set-Cookie header recording this visit
+     */
+    static String cookie(LocalDateTime now) {
+        try {
+            return "Set-Cookie: lasttime=" + URLEncoder.encode(FORMAT.format(now), "UTF-8") + "\r\n";
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError("UTF-8 is unknown");
+        }
+    }
+
+    /**
+     * Reads the previous visit time from the lasttime cookie
+     * @param cookieHeader value of the Cookie header, or null
+     * @param now time of this visit
+     * @return the time to show, or null for a new visitor. A cookie that isn't a valid time or is in the future
+     * counts as new, so nothing the client sends ends up in the page as is.
+     */
+    static byte[] lastVisit(String cookieHeader, LocalDateTime now) {
+        if (cookieHeader == null) return null;
+        int start = cookieHeader.indexOf("lasttime=");
+        if (start < 0) return null;
+        start += 9;
+        int end = cookieHeader.indexOf(';', start);
+        String value = cookieHeader.substring(start, end < 0 ? cookieHeader.length() : end).trim();
+        try {
+            LocalDateTime last = LocalDateTime.parse(URLDecoder.decode(value, "UTF-8"), FORMAT);
+            if (last.isAfter(now)) return null;
+            return FORMAT.format(last).getBytes();
+        } catch (DateTimeParseException | IllegalArgumentException | UnsupportedEncodingException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return length of the page for a visitor
+     */
+    static int length(byte[] lastVisit) {
+        return lastVisit == null ? NEW_VISITOR.length : RETURNING.length + lastVisit.length + END.length;
+    }
+
+    /**
+     * Writes the page for a visitor straight to the response stream
+     */
+    static void write(OutputStream out, byte[] lastVisit) throws IOException {
+        if (lastVisit == null) {
+            out.write(NEW_VISITOR);
+            return;
+        }
+        out.write(RETURNING);
+        out.write(lastVisit);
+        out.write(END);
+    }
+}
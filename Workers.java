@@ -0,0 +1,46 @@
+import java.util.concurrent.*;
+
+/**
+ * Builds the executor that runs SocketHandlers, based on the startup options
+ */
+public class Workers {
+
+    /**
+     * Creates the worker executor. --threads=pool (default) runs handlers on a pool of --max-connections threads,
+     * --threads=virtual runs each handler on its own virtual thread. Either way an AdmissionController decides how
+     * many run at once: --admission=gradient (default), aimd or fixed picks how the limit moves between
+     * --min-limit and --max-connections, --queue-depth and --queue-timeout size the wait queue, --latency-target
+     * is the AIMD back off point in milliseconds and --retry-after goes on the 503s. Anything the controller turns
+     * away is rejected with RejectedExecutionException so the caller sends a 503.
+     * @param options startup options
+     * @param groups number of worker groups the threads and limits are split between, one per acceptor
+     * @return executor for SocketHandlers
+     */
+    public static AdmissionController create(ServerOptions options, int groups) {
+        int max = Math.max(1, options.getInt("max-connections", 50) / groups);
+        ExecutorService threads;
+        if (options.get("threads", "pool").equals("virtual")) {
+            threads = newVirtualThreadPerTaskExecutor();
+        } else {
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(max, max, 1000, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>()); //thread pool object
+            pool.allowCoreThreadTimeOut(true); //Idle threads still go away, the controller keeps the queue empty
+            threads = pool;
+        }
+        return new AdmissionController(threads, AdmissionController.algorithm(options.get("admission", "gradient")),
+                Math.max(1, options.getInt("min-limit", 5) / groups), max, Math.max(1, options.getInt("queue-depth", 16) / groups),
+                options.getInt("queue-timeout", 500), options.getInt("latency-target", 250), options.getInt("retry-after", 1));
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor is looked up at runtime so the server still builds and runs on
+     * JDKs before 21, where it falls back to a new platform thread per task
+     */
+    static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Virtual threads not available, using a thread per connection");
+            return Executors.newCachedThreadPool();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+/**
+ * Compares RequestParser against the old line based parsing (BufferedReader.readLine, String.split and the
+ * version regexes from parseRequest) on the same request. Reports time and bytes allocated per request.
+ *
+ * Usage: java ParserBenchmark [iterations]
+ */
+class ParserBenchmark {
+
+    static final byte[] REQUEST = ("GET /resources/google.png HTTP/1.1\r\n"
+            + "Host: localhost:8080\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0\r\n"
+            + "Accept: image/avif,image/webp,*/*\r\n"
+            + "Accept-Language: en-US,en;q=0.5\r\n"
+            + "Accept-Encoding: gzip, deflate\r\n"
+            + "Connection: keep-alive\r\n"
+            + "Cookie: lasttime=2020-12-21+11%3A50%3A00\r\n"
+            + "\r\n").getBytes();
+
+    static int sink; // Keeps the results alive so the work isn't optimized away
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+
+        for (int round = 0; round < 3; round++) { //First rounds are warm up
+            report("legacy readLine/split/regex", iterations, ParserBenchmark::legacy);
+            report("RequestParser", iterations, ParserBenchmark::parser);
+        }
+    }
+
+    interface Body {
+        void run(int iterations) throws Exception;
+    }
+
+    static void report(String name, int iterations, Body body) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        long allocated = threads.getThreadAllocatedBytes(id);
+        long start = System.nanoTime();
+        body.run(iterations);
+        long elapsed = System.nanoTime() - start;
+        allocated = threads.getThreadAllocatedBytes(id) - allocated;
+        System.out.printf("%-28s %8.1f ns/op %8.1f B/op%n", name, (double) elapsed / iterations, (double) allocated / iterations);
+    }
+
+    /**
+     * What SocketHandler did before RequestParser: decode through a reader, read every line, split the request
+     * line and check the version with regexes
+     */
+    static void legacy(int iterations) throws IOException {
+        for (int i = 0; i < iterations; i++) {
+            BufferedReader req = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(REQUEST)));
+            String first = req.readLine();
+            int count = 0;
+            String line;
+            while ((line = req.readLine()) != null && !line.isEmpty()) {
+                String[] tokens = line.split(" ");
+                count += tokens.length;
+            }
+            String[] firstLine = first.split(" ");
+            String version = firstLine[2];
+            boolean ok = version.matches("HTTP/0.\\d") || version.matches("HTTP/1.0") || version.equals("HTTP/1.1");
+            sink += count + firstLine[0].length() + firstLine[1].length() + (ok ? 1 : 0);
+        }
+    }
+
+    /**
+     * The same work with one reused RequestParser over a reused buffer
+     */
+    static void parser(int iterations) {
+        RequestParser parser = new RequestParser();
+        ByteBuffer buffer = ByteBuffer.wrap(REQUEST);
+        for (int i = 0; i < iterations; i++) {
+            buffer.clear();
+            parser.reset(false);
+            parser.parse(buffer);
+            boolean ok = parser.version() == 11;
+            sink += parser.headerCount() + (parser.method() == RequestParser.GET ? 1 : 0) + (ok ? 1 : 0)
+                    + (parser.valueContains("Connection", "close") ? 1 : 0);
+        }
+    }
+}
@@ -0,0 +1,302 @@
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * Benchmarks the request pipeline the way JMH would in average time mode: a few warm up iterations, then timed
+ * iterations of each benchmark, reporting ns/op and, like JMH's gc profiler, bytes allocated per op. Covers the
+ * parser, Response.getResponseHeaders, getMimeType, convertDateFormat and convertToLong, and whole requests run
+ * through SocketHandler over an in-memory socket, from request bytes to response bytes.
+ *
+ * Results are written as JSON, one benchmark per line in the layout of JMH's -rf json, so runs can be diffed or
+ * loaded by the usual JMH tooling. Given a baseline file from an earlier run it prints the change for each
+ * benchmark and exits with status 1 if any got slower or allocates more by more than the threshold.
+ *
+ * Run it from the directory the server would serve, it creates and removes bench-pipeline.txt there.
+ *
+ * Usage: java PipelineBenchmark [--warmup=3] [--iterations=5] [--time=MS] [--only=NAME] [--out=FILE]
+ *        [--baseline=FILE] [--threshold=PERCENT]
+ */
+class PipelineBenchmark {
+
+    static final String FILE = "bench-pipeline.txt";
+    static final String TARGET = "/" + FILE;
+
+    static final byte[] HEAD = ("GET " + TARGET + " HTTP/1.1\r\n"
+            + "Host: localhost:8080\r\n"
+            + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:109.0) Gecko/20100101 Firefox/115.0\r\n"
+            + "Accept: text/html,application/xhtml+xml,*/*;q=0.8\r\n"
+            + "Accept-Language: en-US,en;q=0.5\r\n"
+            + "Connection: keep-alive\r\n"
+            + "Cookie: lasttime=2020-12-21+11%3A50%3A00\r\n"
+            + "\r\n").getBytes();
+
+    static long sink; // Keeps the results alive so the work isn't optimized away
+
+    interface Op {
+        void run() throws Exception;
+    }
+
+    /**
+     * One benchmark's measured iterations
+     */
+    static class Result {
+        final String name;
+        final double[] nanos; // ns/op of each iteration
+        final double[] bytes; // B/op of each iteration
+
+        Result(String name, int iterations) {
+            this.name = name;
+            this.nanos = new double[iterations];
+            this.bytes = new double[iterations];
+        }
+
+        double score() {
+            return mean(nanos);
+        }
+
+        double allocated() {
+            return mean(bytes);
+        }
+
+        /**
+         * @return half width of the 99.9% confidence interval, as JMH reports it
+         */
+        double error() {
+            if (nanos.length < 2) return Double.NaN;
+            double m = mean(nanos);
+            double sq = 0;
+            for (double n : nanos) {
+                sq += (n - m) * (n - m);
+            }
+            return 3.29 * Math.sqrt(sq / (nanos.length - 1)) / Math.sqrt(nanos.length);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        ServerOptions options = new ServerOptions(args, 0);
+        int warmup = options.getInt("warmup", 3);
+        int iterations = options.getInt("iterations", 5);
+        long time = options.getInt("time", 1000);
+        String only = options.get("only", null);
+        String out = options.get("out", "pipeline-benchmark.json");
+        String baseline = options.get("baseline", null);
+        double threshold = options.getInt("threshold", 10);
+
+        SocketHandler.configure(options); //Same defaults the server starts with
+        RequestParser.configure(options);
+        ContentCache.configure(options);
+        FileMetadata.configure(options);
+        DocRoot.configure(options);
+        MappedFiles.configure(options);
+        Compression.configure(options);
+        CgiPool.configure(options);
+        Metrics.configure(options);
+
+        File file = new File(FILE);
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 4096) {
+            text.append("The quick brown fox jumps over the lazy dog.\n");
+        }
+        Files.write(file.toPath(), text.toString().getBytes());
+        file.deleteOnExit();
+
+        Map<String, Op> benchmarks = new LinkedHashMap<String, Op>();
+        RequestParser parser = new RequestParser();
+        ByteBuffer head = ByteBuffer.wrap(HEAD);
+        benchmarks.put("requestParser", () -> {
+            head.clear();
+            parser.reset(false);
+            sink += parser.parse(head) + parser.headerCount();
+        });
+        String entityHeaders = new Response(file).getEntityHeaders(file.length(), file.lastModified());
+        benchmarks.put("responseHeaders", () -> sink += Response.getResponseHeaders(entityHeaders, TARGET).length());
+        String[] paths = {"./index.html", "./resources/google.png", "./resources/bitcoin.pdf", "./" + FILE};
+        int[] next = new int[1];
+        benchmarks.put("mimeType", () -> sink += Response.getMimeType(paths[next[0]++ & 3]).length());
+        long now = System.currentTimeMillis();
+        benchmarks.put("convertDateFormat", () -> sink += Response.convertDateFormat(now).length());
+        String date = Response.convertDateFormat(now);
+        benchmarks.put("convertToLong", () -> sink += Response.convertToLong(date));
+        benchmarks.put("headRequest", request("HEAD " + TARGET + " HTTP/1.0\r\nUser-Agent: bench\r\n\r\n"));
+        benchmarks.put("getRequest", request("GET " + TARGET + " HTTP/1.0\r\nUser-Agent: bench\r\n\r\n"));
+        benchmarks.put("notModifiedRequest", request("GET " + TARGET + " HTTP/1.0\r\nIf-None-Match: "
+                + FileMetadata.etag(file.lastModified(), file.length()) + "\r\n\r\n"));
+        benchmarks.put("notFoundRequest", request("GET /missing.txt HTTP/1.0\r\n\r\n"));
+
+        List<Result> results = new ArrayList<Result>();
+        for (Map.Entry<String, Op> b : benchmarks.entrySet()) {
+            if (only != null && !b.getKey().contains(only)) continue;
+            Result r = new Result(b.getKey(), iterations);
+            for (int i = 0; i < warmup; i++) {
+                measure(b.getValue(), time, null, 0);
+            }
+            for (int i = 0; i < iterations; i++) {
+                measure(b.getValue(), time, r, i);
+            }
+            results.add(r);
+            System.out.printf("%-22s %10.1f +- %7.1f ns/op %10.1f B/op%n", r.name, r.score(), r.error(), r.allocated());
+        }
+
+        try (PrintWriter w = new PrintWriter(new FileWriter(out))) {
+            w.println("[");
+            for (int i = 0; i < results.size(); i++) {
+                w.println(json(results.get(i)) + (i < results.size() - 1 ? "," : ""));
+            }
+            w.println("]");
+        }
+        System.out.println("Results written to " + out);
+
+        if (baseline != null && regressed(results, baseline, threshold)) {
+            System.exit(1);
+        }
+        System.exit(0); //Server threads started by configure are not all daemons
+    }
+
+    /**
+     * Runs the op in batches until the iteration time is up
+     * @param r result to record into, null for a warm up iteration
+     */
+    static void measure(Op op, long time, Result r, int iteration) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        long allocated = threads.getThreadAllocatedBytes(id);
+        long start = System.nanoTime();
+        long end = start + time * 1000000;
+        long ops = 0;
+        long elapsed;
+        do {
+            for (int i = 0; i < 64; i++) { //Only check the clock every so often so it doesn't dominate the short ops
+                op.run();
+            }
+            ops += 64;
+            elapsed = System.nanoTime() - start;
+        } while (start + elapsed < end);
+        allocated = threads.getThreadAllocatedBytes(id) - allocated;
+        if (r != null) {
+            r.nanos[iteration] = (double) elapsed / ops;
+            r.bytes[iteration] = (double) allocated / ops;
+        }
+    }
+
+    /**
+     * Makes a benchmark that runs one whole connection through SocketHandler: the request is read from memory and
+     * the response written to memory
+     */
+    static Op request(String request) throws Exception {
+        byte[] bytes = request.getBytes();
+        ByteArrayOutputStream response = new ByteArrayOutputStream(16384);
+        Op op = () -> {
+            response.reset();
+            new SocketHandler(new MemorySocket(bytes, response)).run();
+            sink += response.size();
+        };
+        op.run();
+        String status = new String(response.toByteArray(), 0, Math.min(12, response.size()));
+        if (!status.startsWith("HTTP/1.")) throw new IllegalStateException("No response to " + request.trim());
+        return op;
+    }
+
+    /**
+     * Socket stand-in whose input is a fixed request and whose output goes to a buffer. It reports its output as
+     * already shut down so GracefulClose leaves it alone.
+     */
+    static class MemorySocket extends Socket {
+        private final InputStream in;
+        private final OutputStream out;
+
+        MemorySocket(byte[] request, OutputStream out) {
+            this.in = new ByteArrayInputStream(request);
+            this.out = out;
+        }
+
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        public InetAddress getInetAddress() {
+            return InetAddress.getLoopbackAddress();
+        }
+
+        public int getLocalPort() {
+            return 8080;
+        }
+
+        public void setSoTimeout(int timeout) {
+
+        }
+
+        public boolean isOutputShutdown() {
+            return true;
+        }
+    }
+
+    static String json(Result r) {
+        return String.format(Locale.ROOT, "{\"benchmark\":\"PipelineBenchmark.%s\",\"mode\":\"avgt\",\"primaryMetric\":{\"score\":%.3f,"
+                        + "\"scoreError\":%.3f,\"scoreUnit\":\"ns/op\",\"rawData\":[%s]},\"secondaryMetrics\":{\"gc.alloc.rate.norm\":"
+                        + "{\"score\":%.3f,\"scoreUnit\":\"B/op\",\"rawData\":[%s]}}}",
+                r.name, r.score(), Double.isNaN(r.error()) ? 0 : r.error(), raw(r.nanos), r.allocated(), raw(r.bytes));
+    }
+
+    static String raw(double[] values) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(String.format(Locale.ROOT, "%.3f", values[i]));
+        }
+        return sb.append(']').toString();
+    }
+
+    /**
+     * Compares the results with a file written by an earlier run
+     * @return true if any benchmark got slower, or allocates more, by more than the threshold percentage. Time only
+     * counts when the difference is also outside the error of both runs.
+     */
+    static boolean regressed(List<Result> results, String baseline, double threshold) throws IOException {
+        Pattern line = Pattern.compile("\"benchmark\":\"[^\"]*?\\.([^\".]+)\".*?\"score\":([0-9.]+),\"scoreError\":([0-9.]+)"
+                + ".*?\"gc\\.alloc\\.rate\\.norm\":\\{\"score\":([0-9.]+)");
+        Map<String, double[]> old = new HashMap<String, double[]>();
+        for (String l : Files.readAllLines(Paths.get(baseline))) {
+            Matcher m = line.matcher(l);
+            if (m.find()) {
+                old.put(m.group(1), new double[] {Double.parseDouble(m.group(2)), Double.parseDouble(m.group(3)),
+                        Double.parseDouble(m.group(4))});
+            }
+        }
+
+        boolean regressed = false;
+        System.out.println("Compared with " + baseline + ":");
+        for (Result r : results) {
+            double[] b = old.get(r.name);
+            if (b == null) continue;
+            double time = percent(b[0], r.score());
+            double bytes = percent(b[2], r.allocated());
+            double error = (Double.isNaN(r.error()) ? 0 : r.error()) + b[1];
+            boolean worse = (time > threshold && r.score() - b[0] > error) //Slower by more than the two runs' error bars
+                    || (bytes > threshold && r.allocated() - b[2] >= 8); //A few bytes of noise isn't a regression
+            regressed |= worse;
+            System.out.printf("%-22s %+7.1f%% time %+7.1f%% B/op%s%n", r.name, time, bytes, worse ? "  REGRESSION" : "");
+        }
+        return regressed;
+    }
+
+    static double percent(double before, double after) {
+        return before == 0 ? (after == 0 ? 0 : 100) : (after - before) * 100 / before;
+    }
+
+    static double mean(double[] values) {
+        double sum = 0;
+        for (double v : values) {
+            sum += v;
+        }
+        return sum / values.length;
+    }
+}
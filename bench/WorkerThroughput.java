@@ -0,0 +1,44 @@
+import java.io.*;
+import java.net.*;
+
+/**
+ * Measures how many requests per second a single worker can finish. Start the server with --max-connections=1 so
+ * there is only one worker, then run this against it. Requests are sent one after another on fresh connections and
+ * each one counts once the server has closed its side.
+ *
+ * Usage: java WorkerThroughput <port> [seconds] [path]
+ */
+class WorkerThroughput {
+
+    public static void main(String[] args) throws Exception {
+        int port = Integer.parseInt(args[0]);
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        String path = args.length > 2 ? args[2] : "/index.html";
+        byte[] request = ("HEAD " + path + " HTTP/1.0\r\n\r\n").getBytes();
+        byte[] buffer = new byte[8192];
+
+        int done = 0;
+        int failed = 0;
+        long start = System.nanoTime();
+        long end = start + seconds * 1000000000L;
+        while (System.nanoTime() < end) {
+            try (Socket s = new Socket("localhost", port)) {
+                s.getOutputStream().write(request);
+                InputStream in = s.getInputStream();
+                int total = 0;
+                int n;
+                while ((n = in.read(buffer)) != -1) { //Response is finished when the server closes its side
+                    total += n;
+                }
+                if (total > 0) done++;
+                else failed++;
+            } catch (IOException e) {
+                failed++;
+            }
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        System.out.println("requests: " + done + " failed: " + failed);
+        System.out.printf("requests/s per worker: %.1f%n", done / elapsed);
+    }
+}
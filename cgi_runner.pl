@@ -0,0 +1,112 @@
+#!/usr/bin/perl
+# Long-lived CGI worker for the server's pooled CGI mode (--cgi=pool).
+#
+# Started once per pool slot with the script to run and the most bytes it may print as its
+# arguments, and with the switches from the script's #! line (-wT) on the perl command line.
+# The script is compiled once into a sub, the way ModPerl::Registry does it, so its use lines
+# and BEGIN blocks run once per worker, and compiled again only if the file changes. Like under
+# Registry, a named sub in the script must not use the script's file scoped my variables, they
+# would keep the values of the first request. Each request arrives on stdin as
+#   <number of env vars>\n  NAME=value\n ...  <body length>\n  <body>
+# The script is run inside this interpreter with %ENV, STDIN and STDOUT set up the way a
+# forked CGI process would see them, and the result goes back on stdout as
+#   <status>\n  <output length>\n  <output>
+# where status is 0 when the script finished and 1 when it died or printed more than it may,
+# in which case its output is dropped.
+use strict;
+use warnings;
+
+# A script calling exit ends its request, not the worker
+BEGIN { *CORE::GLOBAL::exit = sub { die "__cgi_exit__\n" }; }
+
+my $script = shift @ARGV or die "usage: cgi_runner.pl script [max-output]\n";
+($script) = $script =~ /\A(.*)\z/s; # Chosen by the server, not the client, so trusted under -T
+my ($max_output) = (shift(@ARGV) // 8 << 20) =~ /\A(\d+)\z/ or die "max-output must be a number\n";
+
+eval { require CGI; }; # Warm up: most scripts use CGI.pm, load it once per worker
+
+my ($handler, $compiled, $compile_error); # Script as a sub, the mtime it was compiled at, why it didn't compile
+
+# Compiles the script into a sub unless the current version already is
+sub compile {
+    my $mtime = (stat $script)[9];
+    return if defined $compiled && defined $mtime && $mtime == $compiled;
+    $compiled = $mtime;
+    undef $handler;
+    $compile_error = '';
+    open(my $fh, '<', $script) or do { $compile_error = "$script: $!\n"; return; };
+    my $source = do { local $/; <$fh> };
+    close $fh;
+    ($source) = $source =~ /\A(.*)\z/s; # Trusted like the path, string eval refuses tainted code
+    $source =~ s/^__(?:END|DATA)__\b.*//ms; # Would end the sub too
+    $handler = eval "package main; sub {\n#line 1 \"$script\"\n$source\n}";
+    $compile_error = $@ || "$script did not compile\n" unless $handler;
+}
+
+# STDOUT while a script runs: collects what it prints, and stops it once that passes $max_output
+package CgiRunner::Output {
+    sub TIEHANDLE { my ($class, $output) = @_; return bless { output => $output, over => 0 }, $class; }
+    sub PRINT {
+        my $self = shift;
+        my $data = join(defined $, ? $, : '', @_) . (defined $\ ? $\ : '');
+        if ($self->{over} || length(${$self->{output}}) + length($data) > $max_output) {
+            $self->{over} = 1;
+            die "$script printed more than $max_output bytes\n";
+        }
+        ${$self->{output}} .= $data;
+        return 1;
+    }
+    sub PRINTF { my ($self, $format, @args) = @_; return $self->PRINT(sprintf($format, @args)); }
+    sub WRITE {
+        my ($self, $data, $length, $offset) = @_;
+        $length //= length($data);
+        $self->PRINT(substr($data, $offset // 0, $length));
+        return $length;
+    }
+    sub BINMODE { return 1; }
+    sub FILENO { return; }
+    sub CLOSE { return 1; }
+}
+
+open(my $from_server, '<&', \*STDIN) or die "dup stdin: $!";
+open(my $to_server, '>&', \*STDOUT) or die "dup stdout: $!";
+binmode $from_server;
+binmode $to_server;
+$to_server->autoflush(1);
+open(STDOUT, '>', '/dev/null') or die "stdout: $!"; # Programs a script starts must not write into the pipe to the server
+
+while (defined(my $count = <$from_server>)) {
+    chomp $count;
+    my %env;
+    for (1 .. $count) {
+        my $line = <$from_server>;
+        chomp $line;
+        my ($name, $value) = split /=/, $line, 2;
+        $env{$name} = $value;
+    }
+    my $length = <$from_server>;
+    chomp $length;
+    my $body = '';
+    while (length($body) < $length) {
+        my $n = read($from_server, $body, $length - length($body), length($body));
+        last unless $n;
+    }
+
+    local %ENV = (%ENV, %env);
+    my $output = '';
+    close STDIN;
+    open(STDIN, '<', \$body) or die "stdin: $!";
+    my $stdout = tie *STDOUT, 'CgiRunner::Output', \$output;
+    CGI::initialize_globals() if defined &CGI::initialize_globals;
+
+    compile();
+    $@ = $compile_error;
+    eval { $handler->(); 1 } if $handler;
+    my $status = ($stdout->{over} || ($@ && $@ ne "__cgi_exit__\n")) ? 1 : 0;
+    print STDERR ($stdout->{over} ? "$script printed more than $max_output bytes\n" : $@) if $status;
+    undef $stdout;
+    untie *STDOUT;
+    $output = '' if $status;
+
+    print $to_server "$status\n", length($output), "\n", $output;
+}